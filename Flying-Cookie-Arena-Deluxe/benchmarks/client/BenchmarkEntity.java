@@ -0,0 +1,82 @@
+package client;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+import com.jme3.collision.CollisionResults;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial;
+
+/// Entity without any scene graph or physics, only holding its transform and some custom data.
+class BenchmarkEntity extends Entity {
+	private Vector3f position = new Vector3f();
+	private Quaternion rotation = new Quaternion();
+	private Vector3f velocity = new Vector3f();
+	private HashMap<String, Object> customData = new HashMap<String, Object>();
+
+	BenchmarkEntity(World world, int entityId) {
+		super(0, world, entityId, Type.CRATE);
+		customData.put("state", "IDLE");
+		customData.put("team", entityId % 2);
+	}
+
+	/// Moves the entity so that the next state built is a new one.
+	void move(float t) {
+		position.set(t, 0.0f, -t);
+		velocity.set(1.0f, 0.0f, -1.0f);
+	}
+
+	@Override
+	public void update(float tpf) {}
+
+	@Override
+	public void destroy() {}
+
+	@Override
+	public Vector3f getPosition() {
+		return position;
+	}
+
+	@Override
+	protected void setPosition(Vector3f position) {
+		if(position != null) this.position.set(position);
+	}
+
+	@Override
+	public Quaternion getRotation() {
+		return rotation;
+	}
+
+	@Override
+	protected void setRotation(Quaternion rotation) {
+		if(rotation != null) this.rotation.set(rotation);
+	}
+
+	@Override
+	public Vector3f getVelocity() {
+		return velocity;
+	}
+
+	@Override
+	protected void setVelocity(Vector3f velocity) {
+		if(velocity != null) this.velocity.set(velocity);
+	}
+
+	@Override
+	public void setCollisionGroup(int group) {}
+
+	@Override
+	public Spatial getSpatial() {
+		return null;
+	}
+
+	@Override
+	protected Serializable getCustomData() {
+		return customData;
+	}
+
+	@Override
+	public void collideWith(Ray ray, CollisionResults results) {}
+}
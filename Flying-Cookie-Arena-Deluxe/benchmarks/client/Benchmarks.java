@@ -0,0 +1,20 @@
+package client;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/// Runs the benchmarks with the GC profiler, reporting the allocation rate of every benchmark.
+/// Usage: Benchmarks [regexp]
+///	Only benchmarks matching the regexp are run, e.g. "NetWrite" or "WorldBenchmark.getEntity". Runs all by default.
+public class Benchmarks {
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include((args.length > 0) ? args[0] : "client\\..*Benchmark")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
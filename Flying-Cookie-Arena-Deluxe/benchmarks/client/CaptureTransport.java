@@ -0,0 +1,38 @@
+package client;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/// Transport that never delivers anything, it only keeps a copy of the latest sent packet.
+class CaptureTransport implements Transport {
+	private InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 23456);
+	private ByteBuffer last = ByteBuffer.allocate(NetWrite.MAX_PACKET_SIZE);
+
+	@Override
+	public void send(ByteBuffer data, InetSocketAddress dest) {
+		last.clear();
+		last.put(data);
+		last.flip();
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buf) {
+		return null;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return addr;
+	}
+
+	@Override
+	public void close() {}
+
+	/// @return A copy of the latest sent packet.
+	ByteBuffer getLastPacket() {
+		ByteBuffer copy = ByteBuffer.allocate(last.remaining());
+		copy.put(last.duplicate());
+		copy.flip();
+		return copy;
+	}
+}
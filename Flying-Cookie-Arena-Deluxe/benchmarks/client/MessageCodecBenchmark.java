@@ -0,0 +1,166 @@
+package client;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Encoding and decoding of every message type with NetCodec.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+	// Entity states are dropped unless they are newer than the latest one read, so read reads a ring of states
+	//	encoded in setup. Their 16 bit sequences go all the way around, every state is newer than the one before.
+	private static final int STATE_COUNT = 8192;
+	private static final int STATE_STEP = 0x10000 / STATE_COUNT;
+
+	@Param({ "HELLO", "PEER_ID", "PEER_LIST", "PING", "PONG", "PEER_TIMED_OUT", "KICKED", "CHAT_MSG",
+		"CREATE_ENTITY", "DESTROY_ENTITY", "ENTITY_STATE", "ENTITY_EVENT", "ENTITY_OWNER_CHANGE", "ENTITY_REQ_OWN_CHANGE" })
+	public String type;
+
+	private Message msg;
+	private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(NetWrite.MAX_MESSAGE_SIZE);
+	private ByteBuffer encoded;
+	private Connection writer = new Connection(new InetSocketAddress("127.0.0.1", 1));
+	private Connection reader = new Connection(new InetSocketAddress("127.0.0.1", 2));
+	private ByteBuffer[] states; // Encoded entity states, only for ENTITY_STATE.
+	private int nextRead = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		msg = createMessage(Message.Type.valueOf(type));
+		writeBuffer.clear();
+		NetCodec.writeMessage(msg, writeBuffer, writer);
+		writeBuffer.flip();
+		encoded = ByteBuffer.allocateDirect(writeBuffer.remaining());
+		encoded.put(writeBuffer);
+		encoded.flip();
+
+		if(msg.type == Message.Type.ENTITY_STATE) {
+			EntityStateMessage state = (EntityStateMessage)msg;
+			states = new ByteBuffer[STATE_COUNT];
+			for(int i = 0; i < STATE_COUNT; ++i) {
+				state.sequence = 1 + i * STATE_STEP;
+				state.position.x = (i % 100);
+				state.encodedCustomData = null;
+				writeBuffer.clear();
+				NetCodec.writeMessage(state, writeBuffer, writer);
+				writeBuffer.flip();
+				states[i] = ByteBuffer.allocateDirect(writeBuffer.remaining());
+				states[i].put(writeBuffer);
+				states[i].flip();
+			}
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer write() throws IOException {
+		nextState();
+		writeBuffer.clear();
+		NetCodec.writeMessage(msg, writeBuffer, writer);
+		return writeBuffer;
+	}
+
+	@Benchmark
+	public Message read() throws IOException {
+		if(states != null) {
+			ByteBuffer state = states[nextRead++ & (STATE_COUNT - 1)];
+			state.rewind();
+			return NetCodec.readMessage(state, reader);
+		}
+		encoded.rewind();
+		return NetCodec.readMessage(encoded, reader);
+	}
+
+	/// Entity states are delta compressed, give every encoded state a new sequence and position like Entity does.
+	/// Entity.buildStateMessage creates a new message every tick, so the cached custom data is dropped
+	///	to make every write serialize it again.
+	private void nextState() {
+		if(msg.type == Message.Type.ENTITY_STATE) {
+			EntityStateMessage state = (EntityStateMessage)msg;
+			state.sequence++;
+			state.position.x = (state.sequence % 100);
+			state.encodedCustomData = null;
+		}
+	}
+
+	/// @return A typical message of the specified type.
+	static Message createMessage(Message.Type type) throws IOException {
+		switch(type) {
+		case HELLO:
+			return new HelloMessage();
+		case PEER_ID:
+			return new PeerIdMessage(3);
+		case PEER_LIST: {
+			PeerListMessage msg = new PeerListMessage();
+			for(int i = 0; i < 8; ++i) {
+				msg.peers.add(msg.new RawPeer(i, InetAddress.getByName("192.168.0." + (10 + i)), 23456, HelloMessage.FEATURE_COMPRESSION));
+			}
+			return msg;
+		}
+		case PING:
+			return new PingMessage();
+		case PONG:
+			return new PongMessage();
+		case PEER_TIMED_OUT:
+			return new PeerTimeOutMessage(3);
+		case KICKED:
+			return new KickedMessage("Desync.");
+		case CHAT_MSG:
+			return new ChatMessage("Who took our flag?");
+		case CREATE_ENTITY: {
+			CreateEntityMessage msg = new CreateEntityMessage(42, Entity.Type.FLAG, new Vector3f(10, 0, 20), new Quaternion());
+			msg.customData = customData();
+			return msg;
+		}
+		case DESTROY_ENTITY:
+			return new DestroyEntityMessage(42);
+		case ENTITY_STATE:
+			return createState();
+		case ENTITY_EVENT:
+			return new EntityEventMessage(createState());
+		case ENTITY_OWNER_CHANGE:
+			return new EntityNewOwnerMessage(3, 42);
+		case ENTITY_REQ_OWN_CHANGE:
+			return new EntityRequestOwnerMessage(42);
+		default:
+			throw new IllegalArgumentException("No sample message for " + type);
+		}
+	}
+
+	private static EntityStateMessage createState() {
+		EntityStateMessage msg = new EntityStateMessage(42, new Vector3f(10, 0, 20), new Quaternion(),
+				new Vector3f(1, 0, 1), customData());
+		msg.sequence = 1;
+		return msg;
+	}
+
+	private static Serializable customData() {
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		data.put("state", "CARRYD");
+		data.put("team", 1);
+		return data;
+	}
+}
@@ -0,0 +1,65 @@
+package client;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/// NetRead.parsePacket and the duplicate detection of reliable packets.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetReadBenchmark {
+	private NetRead netRead;
+	private InetSocketAddress sender = new InetSocketAddress("127.0.0.1", 10000);
+	private ByteBuffer packet; // Unreliable packet with a number of coalesced messages.
+	private Connection conn = new Connection(sender);
+	private int nextReliableId = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		// Capture a packet as encoded by NetWrite
+		CaptureTransport transport = new CaptureTransport();
+		NetWrite sender = new NetWrite(transport);
+		InetSocketAddress dest = new InetSocketAddress("127.0.0.1", 23456);
+		sender.send(dest, MessageCodecBenchmark.createMessage(Message.Type.CHAT_MSG), false);
+		sender.send(dest, MessageCodecBenchmark.createMessage(Message.Type.ENTITY_EVENT), false);
+		sender.send(dest, MessageCodecBenchmark.createMessage(Message.Type.ENTITY_OWNER_CHANGE), false);
+		sender.send(dest, MessageCodecBenchmark.createMessage(Message.Type.DESTROY_ENTITY), false);
+		sender.flush();
+		packet = transport.getLastPacket();
+
+		netRead = new NetRead(new CaptureTransport(), new NetWrite(new CaptureTransport()));
+	}
+
+	/// Decodes every message of a packet and queues them for the game.
+	@Benchmark
+	public int parsePacket() {
+		packet.rewind();
+		netRead.parsePacket(packet, sender);
+		int count = 0;
+		while(netRead.popMessage() != null) {
+			count++;
+		}
+		return count;
+	}
+
+	/// Checks a new reliable packet id for duplicates, was hasBeenProcessed before the packets carried acks.
+	@Benchmark
+	public boolean reliableReceived() {
+		return conn.reliableReceived(nextReliableId++);
+	}
+}
@@ -0,0 +1,91 @@
+package client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// NetWrite.send, flush and update with many reliable packets waiting for acks.
+/// Every flushed packet is followed by an ack of the packet sent unacked packets earlier, keeping the number
+///	of unacked packets per connection constant. The packets sent in setup are never due for a resend, so
+///	update only measures the check.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetWriteBenchmark {
+	private static final int CONNECTIONS = 8;
+
+	@Param({ "1", "32", "200" })
+	public int unacked; // Unacked packets per connection, at most Connection.SENT_WINDOW.
+
+	private NetWrite netWrite;
+	private InetSocketAddress[] dests = new InetSocketAddress[CONNECTIONS];
+	private Connection[] conns = new Connection[CONNECTIONS];
+	private ChatMessage chat = new ChatMessage("Who took our flag?");
+	private EntityStateMessage state = new EntityStateMessage(42, new Vector3f(10, 0, 20), new Quaternion(), new Vector3f());
+	private int next = 0;
+
+	@Setup
+	public void setup() {
+		netWrite = new NetWrite(new CaptureTransport());
+		netWrite.setDefaultBandwidth(0);
+		for(int i = 0; i < CONNECTIONS; ++i) {
+			dests[i] = new InetSocketAddress("127.0.0.1", 10000 + i);
+			conns[i] = netWrite.getConnection(dests[i]);
+			conns[i].rto = TimeUnit.HOURS.toMillis(1); // Kept until the first ack measures a round trip
+		}
+		// Fill the windows without acks, which would bring the timeout down to the measured round trip
+		for(int i = 0; i < unacked * CONNECTIONS; ++i) {
+			netWrite.send(dests[i % CONNECTIONS], chat, true);
+			netWrite.flush();
+		}
+	}
+
+	/// Sends a reliable message to the next connection, flushes it as a packet of its own and acks an old packet.
+	@Benchmark
+	public int sendReliable() {
+		int i = next++ % CONNECTIONS;
+		netWrite.send(dests[i], chat, true);
+		netWrite.flush();
+		Connection conn = conns[i];
+		int oldest = conn.localSequence - 1 - unacked;
+		if(oldest >= 0) {
+			netWrite.ackPackets(conn, oldest, 0);
+		}
+		return netWrite.getUnackedCount();
+	}
+
+	/// Sends an unreliable entity state to every connection, like World.broadcastWorldState.
+	@Benchmark
+	public int sendStates() {
+		state.sequence++;
+		for(int i = 0; i < CONNECTIONS; ++i) {
+			netWrite.send(dests[i], state, false);
+		}
+		netWrite.flush();
+		return netWrite.getUnackedCount();
+	}
+
+	/// Checks for packets to resend, none of the unacked packets are due.
+	@Benchmark
+	public int update() {
+		netWrite.update();
+		return netWrite.getUnackedCount();
+	}
+}
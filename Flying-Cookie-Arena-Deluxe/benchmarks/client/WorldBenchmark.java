@@ -0,0 +1,72 @@
+package client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Node;
+
+/// Entity lookup and state processing of World, and Entity.buildStateMessage.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int entityCount;
+
+	private World world;
+	private BenchmarkEntity entity;
+	private int[] ids = new int[1024]; // Random ids of existing entities, looked up in turn.
+	private EntityStateMessage[] states = new EntityStateMessage[1024];
+	private int next = 0;
+	private float time = 0.0f;
+
+	@Setup
+	public void setup() {
+		world = new World(new Node("benchmark"));
+		for(int i = 0; i < entityCount; ++i) {
+			world.getEntities().add(new BenchmarkEntity(world, i));
+		}
+		entity = (BenchmarkEntity)world.getEntities().get(0);
+
+		Random random = new Random(1234);
+		for(int i = 0; i < ids.length; ++i) {
+			ids[i] = random.nextInt(entityCount);
+			states[i] = new EntityStateMessage(ids[i], new Vector3f(i, 0, i), new Quaternion(), new Vector3f(1, 0, 0));
+		}
+	}
+
+	@Benchmark
+	public Entity getEntity() {
+		return world.getEntity(ids[next++ & (ids.length - 1)]);
+	}
+
+	@Benchmark
+	public void processEntityState() {
+		world.processEntityState(states[next++ & (states.length - 1)]);
+	}
+
+	/// Builds the state of a moving entity, including its custom data.
+	@Benchmark
+	public EntityStateMessage buildStateMessage() {
+		time += 0.01f;
+		entity.move(time);
+		return entity.buildStateMessage(true);
+	}
+}
@@ -96,6 +96,8 @@ public class Application extends SimpleApplication {
 			}
 			timeElapsed = 0.0f;
 		}
+		// Send everything queued during this frame
+		session.flush();
 	}
 
     /* called on application start */
@@ -182,7 +184,7 @@ public class Application extends SimpleApplication {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
 				}
-				world.getEntity(msg.entityId).setOwner(msg.peer);
+				world.setEntityOwner(world.getEntity(msg.entityId), msg.peer);
 			}
 		});
 		session.registerEffect(Message.Type.ENTITY_OWNER_CHANGE, new MessageEffect() {
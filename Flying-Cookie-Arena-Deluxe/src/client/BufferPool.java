@@ -0,0 +1,54 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/// Pool of reusable direct byte buffers, grouped in power of two size classes.
+/// Used by the network layer to avoid allocating new buffers for every packet.
+final class BufferPool {
+	private static final int MIN_SHIFT = 8; // Smallest size class, 256 bytes.
+
+	private final ArrayDeque<ByteBuffer>[] free;
+	private final int maxPooledPerClass;
+
+	/// Constructor
+	/// @param maxSize Largest buffer size that will be requested from the pool.
+	/// @param maxPooledPerClass Maximum number of idle buffers kept for each size class.
+	@SuppressWarnings("unchecked")
+	public BufferPool(int maxSize, int maxPooledPerClass) {
+		this.maxPooledPerClass = maxPooledPerClass;
+		free = (ArrayDeque<ByteBuffer>[])new ArrayDeque<?>[sizeClass(maxSize) + 1];
+		for(int i = 0; i < free.length; ++i) {
+			free[i] = new ArrayDeque<ByteBuffer>();
+		}
+	}
+
+	/// @brief Returns a cleared buffer with room for at least size bytes.
+	public synchronized ByteBuffer acquire(int size) {
+		int c = sizeClass(size);
+		ByteBuffer buf = free[c].pollLast();
+		if(buf == null) {
+			buf = ByteBuffer.allocateDirect(1 << (c + MIN_SHIFT));
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/// @brief Returns a buffer to the pool, the buffer may not be used by the caller after this.
+	public synchronized void release(ByteBuffer buf) {
+		int c = sizeClass(buf.capacity());
+		// Only keep buffers that exactly matches a size class
+		if(c < free.length && buf.capacity() == (1 << (c + MIN_SHIFT)) && free[c].size() < maxPooledPerClass) {
+			free[c].addLast(buf);
+		}
+	}
+
+	/// @return Index of the smallest size class that can hold size bytes.
+	private static int sizeClass(int size) {
+		int c = 0;
+		while((1 << (c + MIN_SHIFT)) < size) {
+			++c;
+		}
+		return c;
+	}
+}
@@ -30,6 +30,7 @@ public class CampFire extends Entity {
 	private PointLight pointLight;
 	private ParticleEmitter flame;
 	private boolean lit = true;
+	private boolean latestLit = true; // Lit state in the latest state message built.
 	
 
 	/// @return The camp fires current position.
@@ -200,7 +201,12 @@ public class CampFire extends Entity {
 
 	@Override
 	protected boolean hasCustomStateChanged() {
- 		return true;
+		return lit != latestLit;
+	}
+
+	@Override
+	protected void customStateSent() {
+		latestLit = lit;
 	}
 
 	@Override
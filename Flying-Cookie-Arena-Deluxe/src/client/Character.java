@@ -258,18 +258,21 @@ public class Character extends Entity {
 		controller.setPhysicsLocation(position);
 	}
 
+	/// @param targetStateTimestamp Local time when the state was built, or -1 if unknown in which case the time it arrived is used.
 	public void setTargetState(Vector3f targetPosition, Quaternion targetRotation, long targetStateTimestamp)
 	{
 		this.targetPosition = targetPosition;
 		this.targetRotation = targetRotation;
-		this.targetStateTimestamp = System.currentTimeMillis();
+		long currentTime = System.currentTimeMillis();
+		this.targetStateTimestamp = (targetStateTimestamp >= 0) ? Math.min(targetStateTimestamp, currentTime) : currentTime;
 	}
 
 
 	@Override
 	public void processStateMessage(EntityStateMessage msg) {
 		if(msg.customData != null) processCustomStateMessage(msg.customData);
-		setTargetState(msg.position, msg.rotation, msg.timestamp);
+		// The timestamp is on the clock of the owner, only usable once the clocks are synchronized
+		setTargetState(msg.position, msg.rotation, Application.getInstance().getSession().toLocalTime(msg.peer, msg.timestamp));
 		setVelocity(msg.velocity);
 	}
 
@@ -0,0 +1,77 @@
+package client;
+
+/// Estimates the clock offset and round trip time to a peer from NTP style PING/PONG exchanges.
+/// Every exchange gives four times: t0 when the ping was sent and t3 when the pong arrived, on the local
+///	clock, and t1 when the ping arrived and t2 when the pong was sent, on the clock of the peer. Assuming the
+///	path is equally long in both directions, the peer's clock is ((t1 - t0) + (t2 - t3)) / 2 ahead of ours.
+///	As in NTP the offset of the sample with the lowest delay among the latest ones is used, since queuing
+///	delays makes the paths unequal and the least delayed sample is the least affected.
+class ClockSync {
+	static final int FILTER_SIZE = 8; // Number of latest samples the offset is chosen from.
+	static final int MIN_SAMPLES = 3; // Samples needed before the offset is trusted.
+	static final long MAX_DELAY = 2000; // Samples with a longer round trip than this in ms are dropped.
+	static final long FAST_INTERVAL = 250; // Time in ms between pings until synchronized.
+	static final long INTERVAL = 2000; // Time in ms between pings once synchronized.
+
+	private long[] offsets = new long[FILTER_SIZE];
+	private long[] delays = new long[FILTER_SIZE];
+	private int count = 0; // Number of samples received, the latest FILTER_SIZE are kept.
+	private long offset = 0; // Time in ms the clock of the peer is ahead of ours.
+	private float smoothedRtt = -1.0f; // -1 until the first sample.
+
+	/// @brief Adds the times of a completed PING/PONG exchange.
+	/// @param pingSendTime t0, local time when the ping was sent.
+	/// @param pingReceiveTime t1, remote time when the ping was received.
+	/// @param pongSendTime t2, remote time when the pong was sent.
+	/// @param pongReceiveTime t3, local time when the pong was received.
+	/// @return True if the sample was used, false if it was rejected as implausible.
+	public synchronized boolean addSample(long pingSendTime, long pingReceiveTime, long pongSendTime, long pongReceiveTime) {
+		// Time spent on the network, excluding the time the peer held the ping
+		long delay = (pongReceiveTime - pingSendTime) - (pongSendTime - pingReceiveTime);
+		if(pongReceiveTime < pingSendTime || delay > MAX_DELAY) {
+			return false;
+		}
+		delay = Math.max(delay, 0); // Negative due to the resolution of the clocks
+
+		int slot = count % FILTER_SIZE;
+		offsets[slot] = ((pingReceiveTime - pingSendTime) + (pongSendTime - pongReceiveTime)) / 2;
+		delays[slot] = delay;
+		count++;
+
+		int best = 0;
+		for(int i = 1; i < Math.min(count, FILTER_SIZE); ++i) {
+			if(delays[i] < delays[best]) {
+				best = i;
+			}
+		}
+		offset = offsets[best];
+
+		smoothedRtt = (smoothedRtt < 0.0f) ? delay : 0.875f * smoothedRtt + 0.125f * delay;
+		return true;
+	}
+
+	/// @return True once enough samples have been received for the offset to be trusted.
+	public synchronized boolean isSynchronized() {
+		return count >= MIN_SAMPLES;
+	}
+
+	/// @return Time in ms the clock of the peer is ahead of ours, 0 until the first sample.
+	public synchronized long getOffset() {
+		return offset;
+	}
+
+	/// @return The smoothed round trip time in ms, excluding the time the peer held the ping, or -1 if not measured yet.
+	public synchronized long getRoundTripTime() {
+		return (smoothedRtt >= 0.0f) ? (long)smoothedRtt : -1;
+	}
+
+	/// @return Time in ms to wait between pings, shorter until synchronized.
+	public synchronized long getPingInterval() {
+		return (count >= MIN_SAMPLES) ? INTERVAL : FAST_INTERVAL;
+	}
+
+	/// @brief Converts a time on the clock of the peer to our clock.
+	public synchronized long toLocalTime(long remoteTime) {
+		return remoteTime - offset;
+	}
+}
@@ -0,0 +1,233 @@
+package client;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.Inflater;
+
+/// State that the network layer keeps for every remote address it communicates with.
+class Connection {
+	// Limits of the retransmission timeout, in ms.
+	static final long INITIAL_RTO = 500; // Used until the first round trip have been measured.
+	static final long MIN_RTO = 50;
+	static final long MAX_RTO = 4000;
+	static final int SENT_WINDOW = 256; // Number of slots in sentPackets, must be a power of two.
+	static final int SENT_WINDOW_MASK = SENT_WINDOW - 1;
+	static final int RELIABLE_WINDOW = 1024; // Number of reliable packet ids tracked for duplicates, must be a multiple of 64.
+
+	public final InetSocketAddress addr;
+
+	// Messages queued during the current tick, waiting to be coalesced and sent on the next flush.
+	// Each buffer holds the space for a packet header followed by message records, null if empty.
+	public ByteBuffer reliableBundle = null;
+	public ByteBuffer unreliableBundle = null;
+
+	// Messages waiting to be packed, and the token bucket limiting how much is sent. Only accessed while holding the NetWrite lock.
+	public PriorityQueue<NetWrite.QueuedMessage> sendQueue = new PriorityQueue<NetWrite.QueuedMessage>(16, NetWrite.SEND_ORDER);
+	public int bandwidth = 0; // Outgoing bytes per second, 0 for no limit.
+	public volatile int queuedCount = 0; // Size of sendQueue, published for the MBeans which read it without the lock.
+	private float budget = 0.0f; // Bytes that can be sent right now, negative after sending a large message.
+	private long budgetTime = 0; // Time of the last refill of the budget.
+
+	public final EntityBaselines baselines = new EntityBaselines(); // Delta compression state for ENTITY_STATE messages.
+	public final NetStats stats = new NetStats(); // Traffic counters, exposed through the MBeans of Peer and Session.
+
+	// Sequence numbers used for acknowledgements, every packet header carries the latest received
+	//	sequence and a bitfield of the 32 sequences before it. Only accessed while holding the NetWrite lock.
+	public int localSequence = 0; // Sequence of the next packet sent to the remote end.
+	public int remoteSequence = -1; // Latest sequence received from the remote end.
+	public int receivedBits = 0; // Bit n is set if remoteSequence - 1 - n have been received.
+	public long ackDeadline = 0; // Time when a standalone ack have to be sent, 0 if there are no pending acks.
+	public int ackedSequence = -1; // remoteSequence carried by the latest packet sent to the remote end.
+	// Unacked reliable packets indexed by the sequence of their latest transmission, modulo SENT_WINDOW.
+	public NetWrite.OutgoingPacket[] sentPackets = new NetWrite.OutgoingPacket[SENT_WINDOW];
+	public int nextReliableId = 0; // Id of the next reliable packet sent, unlike the sequence it's kept when resending.
+	// Acks of the sent reliable packets by id. New ids are never more than RELIABLE_WINDOW ahead of the oldest unacked packet,
+	//	as the remote end only remembers that many ids and couldn't tell a resend of an older packet from a duplicate.
+	private int oldestUnackedId = 0;
+	private long[] ackedReliables = new long[RELIABLE_WINDOW / 64]; // Bit (id % RELIABLE_WINDOW) is set if id have been acked.
+	public int nextFragmentGroup = 0; // Id of the next message sent as fragments.
+	public final FragmentAssembler fragments = new FragmentAssembler(); // Fragmented messages being received.
+	public boolean remoteCompression = false; // The remote peer have announced that it can receive compressed messages.
+	private Inflater inflater = null; // Decompresses received messages (Read thread only), created when first needed.
+
+	// The RELIABLE_ORDERED channel, the only channel that needs sequence numbers of its own as the reliable
+	//	packets already are deduplicated by their id.
+	public int nextOrderedSequence = 0; // Sequence of the next ordered message sent.
+	private int expectedOrderedSequence = 0; // Sequence of the next ordered message to deliver (Read thread only).
+	private HashMap<Integer, Message> earlyOrdered = new HashMap<Integer, Message>(); // Received ordered messages waiting for an earlier one.
+
+	// Ids of the latest reliable packets received, used to drop duplicates. Only accessed by the read thread.
+	private int latestReliableId = -1;
+	private long[] receivedReliables = new long[RELIABLE_WINDOW / 64]; // Bit (id % RELIABLE_WINDOW) is set if id have been received.
+
+	// Round trip estimation as in TCP (RFC 6298), in ms. Only accessed while holding the NetWrite lock.
+	public volatile float smoothedRtt = -1.0f; // -1 until the first sample. Also read by the MBean of the peer.
+	public float rttVariance = 0.0f;
+	public long rto = INITIAL_RTO; // Time to wait for an ack before resending a reliable packet.
+
+	/// Constructor
+	/// @param addr Address and port of the remote end.
+	public Connection(InetSocketAddress addr) {
+		this.addr = addr;
+	}
+
+	/// @brief Adds the budget earned since the last refill, at most 50 ms worth of bandwidth is saved up.
+	public void refillBudget(long time) {
+		float burst = Math.max(bandwidth / 20.0f, NetWrite.MAX_BUNDLE_SIZE);
+		if(budgetTime == 0) {
+			budget = burst;
+		} else {
+			budget = Math.min(budget + bandwidth * (time - budgetTime) / 1000.0f, burst);
+		}
+		budgetTime = time;
+	}
+
+	/// @return True if there is bandwidth left to send more data.
+	public boolean hasBudget() {
+		return bandwidth == 0 || budget > 0.0f;
+	}
+
+	public void spendBudget(int bytes) {
+		budget -= bytes;
+	}
+
+	/// @brief Notes that a packet with the specified sequence have been received from the remote end.
+	public void packetReceived(int sequence) {
+		int d = sequence - remoteSequence;
+		if(remoteSequence < 0) {
+			remoteSequence = sequence;
+			receivedBits = 0;
+		}
+		else if(d > 0) {
+			// Shift the window, the previous latest sequence ends up at bit d - 1
+			if(d < 32) {
+				receivedBits = (receivedBits << d) | (1 << (d - 1));
+			} else {
+				receivedBits = (d == 32) ? (1 << 31) : 0;
+			}
+			remoteSequence = sequence;
+		}
+		else if(d < 0 && d >= -32) {
+			receivedBits |= 1 << (-d - 1);
+		}
+	}
+
+	/// @brief Notes that a reliable packet have been received from the remote end.
+	/// @return True if the packet is a duplicate, or too old to tell, and should be dropped.
+	public boolean reliableReceived(int id) {
+		if(latestReliableId < 0 || id > latestReliableId) {
+			// Slide the window forward, forgetting the ids that falls out of it
+			int count = (latestReliableId < 0) ? RELIABLE_WINDOW : Math.min(id - latestReliableId, RELIABLE_WINDOW);
+			for(int i = 1; i <= count; ++i) {
+				int bit = (id - i + 1) & (RELIABLE_WINDOW - 1);
+				receivedReliables[bit >>> 6] &= ~(1L << (bit & 63));
+			}
+			latestReliableId = id;
+		}
+		else if(latestReliableId - id >= RELIABLE_WINDOW) {
+			return true;
+		}
+
+		int bit = id & (RELIABLE_WINDOW - 1);
+		long mask = 1L << (bit & 63);
+		if((receivedReliables[bit >>> 6] & mask) != 0) {
+			return true;
+		}
+		receivedReliables[bit >>> 6] |= mask;
+		return false;
+	}
+
+	/// @return True if a reliable packet with the specified id have already been received, see reliableReceived.
+	public boolean isReliableReceived(int id) {
+		if(latestReliableId < 0 || id > latestReliableId) {
+			return false;
+		}
+		if(latestReliableId - id >= RELIABLE_WINDOW) {
+			return true;
+		}
+		int bit = id & (RELIABLE_WINDOW - 1);
+		return (receivedReliables[bit >>> 6] & (1L << (bit & 63))) != 0;
+	}
+
+	/// @return True if a reliable packet with the specified id is older than the ids tracked for duplicates.
+	/// As the remote end never sends ids more than RELIABLE_WINDOW ahead of a packet that it's still resending, such a
+	///	packet is a late copy of a packet that have already been acked.
+	public boolean isReliableTooOld(int id) {
+		return latestReliableId >= 0 && latestReliableId - id >= RELIABLE_WINDOW;
+	}
+
+	/// @return True if the specified number of new reliable packets can be sent without getting more than RELIABLE_WINDOW ids
+	///		ahead of the oldest unacked packet.
+	public boolean canSendReliable(int count) {
+		return nextReliableId + count - oldestUnackedId <= RELIABLE_WINDOW;
+	}
+
+	/// @brief Notes that a new reliable packet have been sent, see canSendReliable.
+	public void reliableSent(int id) {
+		int bit = id & (RELIABLE_WINDOW - 1);
+		ackedReliables[bit >>> 6] &= ~(1L << (bit & 63));
+	}
+
+	/// @brief Notes that a reliable packet have been acked, see canSendReliable.
+	public void reliableAcked(int id) {
+		int bit = id & (RELIABLE_WINDOW - 1);
+		ackedReliables[bit >>> 6] |= 1L << (bit & 63);
+		while(oldestUnackedId != nextReliableId) {
+			bit = oldestUnackedId & (RELIABLE_WINDOW - 1);
+			if((ackedReliables[bit >>> 6] & (1L << (bit & 63))) == 0) {
+				break;
+			}
+			oldestUnackedId++;
+		}
+	}
+
+	/// @brief Delivers a message received on the RELIABLE_ORDERED channel, in order.
+	/// @param out Receives the message and any earlier held back messages that can now be delivered, in order.
+	public void orderedReceived(Message msg, List<Message> out) {
+		int sequence = msg.channelSequence;
+		if(sequence - expectedOrderedSequence < 0) {
+			return; // Already delivered
+		}
+		if(sequence != expectedOrderedSequence) {
+			earlyOrdered.put(sequence, msg);
+			return;
+		}
+
+		out.add(msg);
+		expectedOrderedSequence++;
+		Message next;
+		while((next = earlyOrdered.remove(expectedOrderedSequence)) != null) {
+			out.add(next);
+			expectedOrderedSequence++;
+		}
+	}
+
+	/// @brief Updates the round trip estimate and the retransmission timeout with a new sample.
+	/// @param rtt Time in ms between sending a packet and receiving its ack.
+	public void addRttSample(long rtt) {
+		if(smoothedRtt < 0.0f) {
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2.0f;
+		} else {
+			rttVariance = 0.75f * rttVariance + 0.25f * Math.abs(smoothedRtt - rtt);
+			smoothedRtt = 0.875f * smoothedRtt + 0.125f * rtt;
+		}
+		rto = Math.min(Math.max((long)(smoothedRtt + Math.max(1.0f, 4.0f * rttVariance)), MIN_RTO), MAX_RTO);
+	}
+
+	/// @return Time to wait before the next resend of a packet that have already been resent the specified number of times.
+	public long backoffTimeout(int retries) {
+		return Math.min(rto << Math.min(retries, 16), MAX_RTO);
+	}
+
+	/// @return The inflater used for messages received from the remote peer (Read thread only).
+	Inflater inflater() {
+		if(inflater == null) {
+			inflater = new Inflater();
+		}
+		return inflater;
+	}
+}
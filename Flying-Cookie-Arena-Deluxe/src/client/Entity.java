@@ -37,6 +37,7 @@ public abstract class Entity {
 	private Vector3f latestVelocity = new Vector3f();
 	private Quaternion latestRotation = new Quaternion();
 	private long latestStateBuild;
+	private int stateSequence = 0; // Sequence number of the latest built state message.
 	private final static long MAX_STATE_SILINCE = 1000; 
 	
 	private EntityCallback callback = null;
@@ -93,6 +94,10 @@ public abstract class Entity {
 		return false;
 	}
 	
+	/// @brief called when a state message including the custom state have been built, so that hasCustomStateChanged can compare against it.
+	protected void customStateSent() {
+	}
+	
 	/// @brief will ask for ownership for this entity 
 	/// @return boolean if successfully sent the message
 	public final boolean editEntity() {
@@ -178,8 +183,14 @@ public abstract class Entity {
 	
 	/// @brief builds a stateMessage or returns null if nothing have changed and we recently sent something. 
 	public final EntityStateMessage buildStateMessage() {
+		return buildStateMessage(false);
+	}
+	
+	/// @brief builds a stateMessage, including the custom data.
+	/// @param force Builds the message even if nothing have changed, e.g. for a peer that haven't received any recent states.
+	public final EntityStateMessage buildStateMessage(boolean force) {
 		long timestamp = System.currentTimeMillis();
-		boolean updateState = (latestStateBuild+MAX_STATE_SILINCE < timestamp);
+		boolean updateState = force || (latestStateBuild+MAX_STATE_SILINCE < timestamp);
 		if(!updateState && !hasMovementStateChanged() && !hasCustomStateChanged()) {
 			return null;
 		}
@@ -189,9 +200,13 @@ public abstract class Entity {
 		Serializable data = null;
 		if(updateState || hasCustomStateChanged()) {
 			data = getCustomData();
+			customStateSent();
 		}
 		latestStateBuild = timestamp;
-		return new EntityStateMessage(entityId, getPosition(), getRotation(), getVelocity(), data);
+		// The message is encoded later by the writer thread, so it gets the copies rather than the live transform
+		EntityStateMessage msg = new EntityStateMessage(entityId, latestPosition, latestRotation, latestVelocity, data);
+		msg.sequence = ++stateSequence;
+		return msg;
 	}
 	
 	/// @return True if the state has changed.
@@ -209,7 +224,8 @@ public abstract class Entity {
 	/// @brief sends states in a reliable fashion. 
 	public final boolean sendEventMessage() {
 		EntityEventMessage msg = new EntityEventMessage(
-			new EntityStateMessage(entityId, getPosition(), getRotation(), getVelocity(), getCustomData())
+			new EntityStateMessage(entityId, getPosition().clone(), getRotation().clone(),
+					(getVelocity() != null) ? getVelocity().clone() : null, getCustomData())
 		);
 		Session session = Application.getInstance().getSession();
 		try {
@@ -249,6 +265,12 @@ public abstract class Entity {
 		return (ownerPeer == Application.getInstance().getSession().getMyPeerId());
 	}
 
+	/// @brief Returns true if the states of this entity should be sent to every peer, regardless of distance.
+	/// @see World.broadcastWorldState
+	public boolean isAlwaysRelevant() {
+		return false;
+	}
+
 	/// @return Entity flags for this entity.
 	/// @see FLAG_STATIC_OWNERSHIP
 	public int getFlags() {
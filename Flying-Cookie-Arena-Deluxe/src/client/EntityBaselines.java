@@ -0,0 +1,345 @@
+package client;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Delta compression of ENTITY_STATE messages for a single connection.
+/// Every state is encoded as the fields that changed compared to a baseline, the latest state of
+///	the entity that the remote peer has acknowledged. When no baseline exists the full state is sent.
+///	Both ends keep a short history of states per entity so that they can agree on the baseline
+///	by its sequence number alone. Transforms are quantized, see Quantization.
+/// To keep the header of every state small the entity id is a variable length integer, the sequence is sent
+///	as its low 16 bits and extended again against the latest sequence received for the entity, and a delta
+///	carries its timestamp as the 16 bit difference to the timestamp of its baseline. The sequences seen by the
+///	receiver therefore only matches those of the sender modulo 2^16. After RESET_TIME without any state the sequence
+///	may have moved too far to be extended, so the receiver starts the history of the entity over from the next full state.
+class EntityBaselines {
+	static final int WINDOW = 32; // Number of states kept per entity, a baseline can at most be this old.
+	static final int FULL_STATE_INTERVAL = 32; // Send a full state this often, even if a baseline exists.
+	private static final int PACKET_HISTORY = 256; // Number of sent packets remembered while waiting for acks.
+	static final long RESET_TIME = 10000; // Time in ms between two states of an entity after which the receiver starts over, far less than 2^15 ticks.
+
+	// Bits in the field mask that starts every encoded state
+	private static final int FIELD_POSITION = 0x1;
+	private static final int FIELD_ROTATION = 0x2;
+	private static final int FIELD_VELOCITY = 0x4;
+	private static final int FIELD_CUSTOM = 0x8;
+	private static final int FIELD_BASELINE = 0x10; // The state is a delta, followed by the distance and time since the baseline.
+	private static final int MAX_TIME_DELTA = 0xFFFF; // Largest difference in timestamp to a baseline that can be sent.
+	// A field that is included but set to null, nothing more is written for the field.
+	private static final int NULL_POSITION = 0x20;
+	private static final int NULL_ROTATION = 0x40;
+	private static final int NULL_VELOCITY = 0x80;
+
+	/// State of an entity at a specific sequence number, stored as quantized values.
+	static class Snapshot {
+		int sequence = -1;
+		long timestamp;
+		boolean hasPosition, hasRotation, hasVelocity;
+		long position; // See Quantization
+		int rotation;
+		long velocity;
+		int customHash; // Hash of the latest known serialized customData.
+
+		void set(Vector3f position, Quaternion rotation, Vector3f velocity) {
+			hasPosition = (position != null);
+			hasRotation = (rotation != null);
+			hasVelocity = (velocity != null);
+			this.position = hasPosition ? Quantization.quantizePosition(position) : 0;
+			this.rotation = hasRotation ? Quantization.quantizeRotation(rotation) : 0;
+			this.velocity = hasVelocity ? Quantization.quantizeVelocity(velocity) : 0;
+		}
+		boolean positionEquals(Snapshot s) {
+			return hasPosition == s.hasPosition && position == s.position;
+		}
+		boolean rotationEquals(Snapshot s) {
+			return hasRotation == s.hasRotation && rotation == s.rotation;
+		}
+		boolean velocityEquals(Snapshot s) {
+			return hasVelocity == s.hasVelocity && velocity == s.velocity;
+		}
+		void copy(Snapshot s) {
+			sequence = s.sequence;
+			timestamp = s.timestamp;
+			hasPosition = s.hasPosition; position = s.position;
+			hasRotation = s.hasRotation; rotation = s.rotation;
+			hasVelocity = s.hasVelocity; velocity = s.velocity;
+			customHash = s.customHash;
+		}
+	}
+
+	/// The recent states of a single entity.
+	static class History {
+		Snapshot[] states = new Snapshot[WINDOW];
+		int ackedSequence = -1; // Latest state acknowledged by the remote peer (Sender side only).
+		int latestSequence = -1; // Latest state delivered to the game, the sequences are extended against it (Receiver side only).
+		long latestTimestamp; // Timestamp of the latest state delivered (Receiver side only).
+
+		History() {
+			for(int i = 0; i < WINDOW; ++i) {
+				states[i] = new Snapshot();
+			}
+		}
+
+		/// @brief Forgets all states, the next state defines where the sequences start again.
+		void reset() {
+			latestSequence = -1;
+			for(int i = 0; i < WINDOW; ++i) {
+				states[i].sequence = -1;
+			}
+		}
+
+		/// @return The stored state with the specified sequence, or null if it's no longer available.
+		Snapshot get(int sequence) {
+			Snapshot s = states[sequence % WINDOW];
+			return (sequence >= 0 && s.sequence == sequence) ? s : null;
+		}
+	}
+
+	/// Entity states carried by a sent packet.
+	private static class PacketEntry {
+		int packetId = -1;
+		int count = 0;
+		int[] states = new int[16]; // Pairs of entity id and sequence.
+	}
+
+	private HashMap<Integer, History> sent = new HashMap<Integer, History>(); // States we have sent to the remote peer.
+	private HashMap<Integer, History> received = new HashMap<Integer, History>(); // States we have received from the remote peer.
+	private PacketEntry[] packets = new PacketEntry[PACKET_HISTORY];
+	private PacketEntry[] pending = { new PacketEntry(), new PacketEntry() }; // States in the unsent unreliable and reliable packet.
+	private Snapshot current = new Snapshot(); // Scratch snapshot used when encoding, guarded by the lock of write.
+	private Snapshot decoded = new Snapshot(); // Scratch snapshot used when decoding (Read thread only).
+	private ConcurrentLinkedQueue<Integer> forgotten = new ConcurrentLinkedQueue<Integer>(); // Entities to remove from received by the read thread.
+
+	public EntityBaselines() {
+		for(int i = 0; i < PACKET_HISTORY; ++i) {
+			packets[i] = new PacketEntry();
+		}
+	}
+
+	/// @brief Encodes the state as a delta against the latest acknowledged state of the entity.
+	public synchronized void write(EntityStateMessage msg, ByteBuffer buf) throws IOException {
+		History history = sent.get(msg.entityId);
+		if(history == null) {
+			history = new History();
+			sent.put(msg.entityId, history);
+		}
+
+		Snapshot baseline = null;
+		if(history.ackedSequence >= 0 && msg.sequence - history.ackedSequence < WINDOW
+				&& (msg.sequence % FULL_STATE_INTERVAL) != 0) {
+			baseline = history.get(history.ackedSequence);
+			if(baseline != null && (msg.timestamp - baseline.timestamp < 0 || msg.timestamp - baseline.timestamp > MAX_TIME_DELTA)) {
+				baseline = null; // The time since the baseline doesn't fit, send the full state
+			}
+		}
+
+		byte[] custom = null;
+		current.sequence = msg.sequence;
+		current.timestamp = msg.timestamp;
+		current.set(msg.position, msg.rotation, msg.velocity);
+		current.customHash = (baseline != null) ? baseline.customHash : 0;
+		if(msg.customData != null) {
+			// The same message is usually written for several connections, only serialize it once
+			if(msg.encodedCustomData == null) {
+				msg.encodedCustomData = NetCodec.serialize(msg.customData);
+			}
+			custom = msg.encodedCustomData;
+			current.customHash = Arrays.hashCode(custom);
+		}
+
+		int mask = 0;
+		if(baseline == null || !current.positionEquals(baseline)) mask |= FIELD_POSITION;
+		if(baseline == null || !current.rotationEquals(baseline)) mask |= FIELD_ROTATION;
+		if(baseline == null || !current.velocityEquals(baseline)) mask |= FIELD_VELOCITY;
+		if(custom != null && (baseline == null || current.customHash != baseline.customHash)) mask |= FIELD_CUSTOM;
+		if(baseline != null) mask |= FIELD_BASELINE;
+		if(!current.hasPosition) mask |= NULL_POSITION;
+		if(!current.hasRotation) mask |= NULL_ROTATION;
+		if(!current.hasVelocity) mask |= NULL_VELOCITY;
+
+		NetCodec.writeVarInt(msg.entityId, buf);
+		buf.putShort((short)msg.sequence);
+		buf.put((byte)mask);
+		if(baseline != null) {
+			buf.put((byte)(msg.sequence - baseline.sequence));
+			buf.putShort((short)(msg.timestamp - baseline.timestamp));
+		} else {
+			buf.putLong(msg.timestamp);
+		}
+		if((mask & (FIELD_POSITION | NULL_POSITION)) == FIELD_POSITION) {
+			Quantization.writePacked(current.position, Quantization.positionBytes(), buf);
+		}
+		if((mask & (FIELD_ROTATION | NULL_ROTATION)) == FIELD_ROTATION) {
+			buf.putInt(current.rotation);
+		}
+		if((mask & (FIELD_VELOCITY | NULL_VELOCITY)) == FIELD_VELOCITY) {
+			Quantization.writePacked(current.velocity, Quantization.velocityBytes(), buf);
+		}
+		if((mask & FIELD_CUSTOM) != 0) {
+			buf.putInt(custom.length);
+			buf.put(custom);
+		}
+
+		// Remember the state so that it can be used as a baseline once acked
+		history.states[msg.sequence % WINDOW].copy(current);
+	}
+
+	/// @brief Decodes a state written by write.
+	/// States older than the latest state delivered for the entity are only kept as possible baselines,
+	///	they are never turned into messages as they would move the entity back in time.
+	/// @return The decoded message, or null if the baseline it refers to is unknown or the state is out of date.
+	public EntityStateMessage read(ByteBuffer buf) throws IOException {
+		Integer forget;
+		while((forget = forgotten.poll()) != null) {
+			received.remove(forget);
+		}
+
+		int entityId = NetCodec.readVarInt(buf);
+		int lowSequence = buf.getShort() & 0xFFFF;
+		int mask = buf.get() & 0xFF;
+
+		History history = received.get(entityId);
+		if(history == null) {
+			history = new History();
+			received.put(entityId, history);
+		}
+
+		// A full state long after the latest one may be more than half the sequence space ahead, which can't be told from
+		//	an older state, so it starts over. A baseline is never that old, the sender falls back to full states long before.
+		long timestamp = 0;
+		if((mask & FIELD_BASELINE) == 0) {
+			timestamp = buf.getLong();
+			if(history.latestSequence >= 0 && timestamp - history.latestTimestamp > RESET_TIME) {
+				history.reset();
+			}
+		}
+
+		// Extend the sequence to the one closest to the latest received, the first state of an entity defines where it starts
+		int sequence = lowSequence;
+		if(history.latestSequence >= 0) {
+			sequence = history.latestSequence + (short)(lowSequence - history.latestSequence);
+			if(sequence < 0) {
+				return null; // From before the first state received
+			}
+		}
+
+		Snapshot baseline = null;
+		if((mask & FIELD_BASELINE) != 0) {
+			baseline = history.get(sequence - (buf.get() & 0xFF));
+			if(baseline == null) {
+				return null;
+			}
+			timestamp = baseline.timestamp + (buf.getShort() & 0xFFFF);
+		}
+
+		decoded.sequence = sequence;
+		decoded.timestamp = timestamp;
+		if((mask & FIELD_POSITION) != 0) {
+			decoded.hasPosition = (mask & NULL_POSITION) == 0;
+			decoded.position = decoded.hasPosition ? Quantization.readPacked(Quantization.positionBytes(), buf) : 0;
+		} else {
+			decoded.hasPosition = baseline.hasPosition;
+			decoded.position = baseline.position;
+		}
+		if((mask & FIELD_ROTATION) != 0) {
+			decoded.hasRotation = (mask & NULL_ROTATION) == 0;
+			decoded.rotation = decoded.hasRotation ? buf.getInt() : 0;
+		} else {
+			decoded.hasRotation = baseline.hasRotation;
+			decoded.rotation = baseline.rotation;
+		}
+		if((mask & FIELD_VELOCITY) != 0) {
+			decoded.hasVelocity = (mask & NULL_VELOCITY) == 0;
+			decoded.velocity = decoded.hasVelocity ? Quantization.readPacked(Quantization.velocityBytes(), buf) : 0;
+		} else {
+			decoded.hasVelocity = baseline.hasVelocity;
+			decoded.velocity = baseline.velocity;
+		}
+
+		// Store the state, unless a newer state already occupies the slot
+		Snapshot slot = history.states[sequence % WINDOW];
+		if(slot.sequence < sequence) {
+			slot.copy(decoded);
+		}
+
+		// Newest wins, drop the state before its custom data is deserialized
+		if(sequence <= history.latestSequence) {
+			return null;
+		}
+		history.latestSequence = sequence;
+		history.latestTimestamp = timestamp;
+		Serializable customData = ((mask & FIELD_CUSTOM) != 0) ? NetCodec.readSerializable(buf) : null;
+
+		EntityStateMessage msg = new EntityStateMessage(entityId,
+				decoded.hasPosition ? Quantization.dequantizePosition(decoded.position) : null,
+				decoded.hasRotation ? Quantization.dequantizeRotation(decoded.rotation) : null,
+				decoded.hasVelocity ? Quantization.dequantizeVelocity(decoded.velocity) : null,
+				customData);
+		msg.sequence = sequence;
+		msg.timestamp = timestamp;
+		return msg;
+	}
+
+	/// @brief Forgets the states of an entity that have been destroyed or changed owner.
+	/// The states of a new owner start over from its own sequence, they must not be compared to those of the old owner.
+	///	The sent states are dropped right away, the received ones by the read thread before it reads the next state.
+	public synchronized void forget(int entityId) {
+		sent.remove(entityId);
+		forgotten.add(entityId);
+	}
+
+	/// @brief Notes that a state have been queued in the next unreliable or reliable packet.
+	public synchronized void addPending(EntityStateMessage msg, boolean reliable) {
+		PacketEntry entry = pending[reliable ? 1 : 0];
+		if(entry.count * 2 + 2 > entry.states.length) {
+			entry.states = Arrays.copyOf(entry.states, entry.states.length * 2);
+		}
+		entry.states[entry.count * 2] = msg.entityId;
+		entry.states[entry.count * 2 + 1] = msg.sequence;
+		entry.count++;
+	}
+
+	/// @brief Called when the pending unreliable or reliable packet have been sent with the specified id.
+	public synchronized void packetSent(int packetId, boolean reliable) {
+		int p = reliable ? 1 : 0;
+		PacketEntry entry = pending[p];
+		if(entry.count == 0) {
+			return;
+		}
+		// Swap the pending entry with the slot in the packet history
+		int slot = packetId & (PACKET_HISTORY - 1);
+		pending[p] = packets[slot];
+		pending[p].count = 0;
+		pending[p].packetId = -1;
+
+		entry.packetId = packetId;
+		packets[slot] = entry;
+	}
+
+	/// @brief Called when the remote peer have acknowledged the specified packet.
+	/// Every state carried by the packet becomes a candidate baseline.
+	public synchronized void packetAcked(int packetId) {
+		PacketEntry entry = packets[packetId & (PACKET_HISTORY - 1)];
+		if(entry.packetId != packetId) {
+			return;
+		}
+		for(int i = 0; i < entry.count; ++i) {
+			History history = sent.get(entry.states[i * 2]);
+			int sequence = entry.states[i * 2 + 1];
+			if(history != null && sequence > history.ackedSequence) {
+				history.ackedSequence = sequence;
+			}
+		}
+		entry.packetId = -1;
+		entry.count = 0;
+	}
+
+}
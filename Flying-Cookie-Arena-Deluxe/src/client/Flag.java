@@ -207,7 +207,7 @@ public class Flag extends Entity {
 		if(stateIs(CARRYD) && node.getParent().getUserData("id") != null) {
 			map.put("attachHereEntityId", node.getParent().getUserData("id"));
 		} else if(stateIs(DROPPED)) {
-			map.put("dropFlagPosition", getPosition());
+			map.put("dropFlagPosition", getPosition().clone());
 		}
 		return (Serializable) map;
 	}
@@ -222,10 +222,21 @@ public class Flag extends Entity {
 		return (this.state == state)? true : false;
 	}
 
+	/// @brief A carried flag is always relevant as everyone wants to know who have it.
+	@Override
+	public boolean isAlwaysRelevant() {
+		return stateIs(CARRYD);
+	}
+
 	@Override
 	protected boolean hasCustomStateChanged() {
  		return !(stateIs(latestState));
 	}
+
+	@Override
+	protected void customStateSent() {
+		setLatestState(state);
+	}
 	
 	@Override
 	public void update(float tpf) {
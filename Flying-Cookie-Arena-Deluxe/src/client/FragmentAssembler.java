@@ -0,0 +1,127 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/// Reassembles messages that NetWrite have split into fragments, for a single connection.
+/// Every fragment but the last holds exactly NetWrite.FRAGMENT_SIZE bytes, so a fragment can be
+///	copied into place as soon as it arrives. The memory held by incomplete messages is bounded by
+///	MAX_PENDING_BYTES. Unreliable messages that aren't completed within TIMEOUT are dropped, and
+///	make room for reliable messages. Reliable messages are never dropped, as their fragments have
+///	been acked and won't be sent again, instead their space is reserved before the fragments are acked.
+/// @remark Only accessed by the read thread.
+class FragmentAssembler {
+	static final int MAX_FRAGMENTS = 256; // Maximum number of fragments of a single message.
+	static final int MAX_PENDING_BYTES = 1024 * 1024; // Maximum number of bytes reserved by incomplete messages.
+	static final long TIMEOUT = 5000; // Time in ms an incomplete message is kept.
+
+	/// A message that haven't received all its fragments yet.
+	private static class Pending {
+		byte[] data;
+		boolean[] received;
+		int remaining; // Number of missing fragments.
+		int length = -1; // Total length, known when the last fragment have arrived.
+		long created;
+		boolean reliable; // Reserved by reserve, kept until complete.
+	}
+
+	private HashMap<Integer, Pending> pending = new HashMap<Integer, Pending>();
+	private int pendingBytes = 0;
+	private long lastPurge = 0;
+
+	/// @brief Reserves the space of a message received on a reliable channel, before the packet with its fragment is acked.
+	/// Unreliable messages are dropped to make room if needed. Once reserved, the message is kept until it's complete.
+	/// @return True if the fragments of the message can be added, false if there is no room and the
+	///		packet with the fragment should be dropped without an ack, so that the sender resends it later.
+	public boolean reserve(int group, int count) {
+		Pending p = pending.get(group);
+		if(p != null) {
+			p.reliable = true;
+			return true;
+		}
+		if(count < 2 || count > MAX_FRAGMENTS) {
+			return true; // Malformed, dropped by add
+		}
+
+		int capacity = count * NetWrite.FRAGMENT_SIZE;
+		if(pendingBytes + capacity > MAX_PENDING_BYTES) {
+			purge(Long.MAX_VALUE);
+			if(pendingBytes + capacity > MAX_PENDING_BYTES) {
+				return false;
+			}
+		}
+		create(group, count, System.currentTimeMillis()).reliable = true;
+		return true;
+	}
+
+	/// @brief Adds a fragment.
+	/// @param data The fragment, from position to limit.
+	/// @return The complete message if this was the last missing fragment, otherwise null.
+	public ByteBuffer add(int group, int index, int count, ByteBuffer data) {
+		int size = data.remaining();
+		if(count < 2 || count > MAX_FRAGMENTS || index >= count || size > NetWrite.FRAGMENT_SIZE
+				|| (index < count - 1 && size != NetWrite.FRAGMENT_SIZE)) {
+			return null; // Malformed
+		}
+
+		long currentTime = System.currentTimeMillis();
+		if(currentTime - lastPurge > TIMEOUT / 4) {
+			purge(currentTime - TIMEOUT);
+			lastPurge = currentTime;
+		}
+
+		Pending p = pending.get(group);
+		if(p == null) {
+			// Not reserved, so it's an unreliable message
+			int capacity = count * NetWrite.FRAGMENT_SIZE;
+			if(pendingBytes + capacity > MAX_PENDING_BYTES) {
+				purge(currentTime - TIMEOUT);
+				if(pendingBytes + capacity > MAX_PENDING_BYTES) {
+					return null; // No room, the message is dropped
+				}
+			}
+			p = create(group, count, currentTime);
+		}
+		if(p.received.length != count || p.received[index]) {
+			return null; // Duplicate or not matching the earlier fragments
+		}
+
+		data.get(p.data, index * NetWrite.FRAGMENT_SIZE, size);
+		p.received[index] = true;
+		p.remaining--;
+		if(index == count - 1) {
+			p.length = index * NetWrite.FRAGMENT_SIZE + size;
+		}
+		if(p.remaining > 0) {
+			return null;
+		}
+
+		pending.remove(group);
+		pendingBytes -= p.data.length;
+		return ByteBuffer.wrap(p.data, 0, p.length);
+	}
+
+	private Pending create(int group, int count, long currentTime) {
+		Pending p = new Pending();
+		p.data = new byte[count * NetWrite.FRAGMENT_SIZE];
+		p.received = new boolean[count];
+		p.remaining = count;
+		p.created = currentTime;
+		pending.put(group, p);
+		pendingBytes += p.data.length;
+		return p;
+	}
+
+	/// Drops all incomplete unreliable messages created before the specified time.
+	private void purge(long time) {
+		Iterator<Pending> it = pending.values().iterator();
+		while(it.hasNext()) {
+			Pending p = it.next();
+			if(!p.reliable && p.created < time) {
+				pendingBytes -= p.data.length;
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/// Emulates a bad network link on top of another transport, for testing and debugging.
+/// Every packet passes through one of two directions, each with its own conditions, where it may be
+///	lost, duplicated, delayed or reordered before it reaches the underlying transport or NetRead. All random
+///	decisions are drawn from generators seeded by the seed given to the constructor, so the same
+///	sequence of packets is always treated the same way.
+public class LinkEmulator implements Transport {
+	private static final long POLL_TIMEOUT = 100; // Time in ms the threads wait for a packet before checking if they should quit.
+
+	/// Conditions of one direction of the link.
+	public static class Conditions {
+		public long latency = 0; // Fixed delay in ms added to every packet.
+		public long jitter = 0; // Random delay in ms added on top of the latency, packets still arrive in order.
+		public float loss = 0.0f; // Probability that a packet is dropped.
+		public float duplication = 0.0f; // Probability that a packet is delivered twice.
+		public float reorder = 0.0f; // Probability that a packet is delayed by an additional jitter and may arrive after later packets.
+		public int bandwidth = 0; // Bytes per second, 0 for no limit.
+		public long maxQueueDelay = 1000; // Packets that would wait longer than this in ms for bandwidth are dropped.
+
+		public Conditions() {}
+
+		/// @param latency Fixed delay in ms.
+		/// @param jitter Random additional delay in ms.
+		/// @param loss Probability that a packet is dropped.
+		public Conditions(long latency, long jitter, float loss) {
+			this.latency = latency;
+			this.jitter = jitter;
+			this.loss = loss;
+		}
+	}
+
+	/// A packet on its way through the link.
+	static class Packet implements Delayed {
+		public ByteBuffer data; // Copy of the packet, from position 0 to limit.
+		public InetSocketAddress addr; // Destination for outgoing packets, sender for incoming.
+		public long deliveryTime;
+		private long order; // Keeps packets with the same delivery time in the order they entered the link.
+
+		@Override
+		public int compareTo(Delayed d) {
+			Packet p = (Packet)d;
+			if(deliveryTime != p.deliveryTime) {
+				return (deliveryTime < p.deliveryTime) ? -1 : 1;
+			}
+			return (order < p.order) ? -1 : ((order > p.order) ? 1 : 0);
+		}
+
+		@Override
+		public long getDelay(TimeUnit u) {
+			return u.convert(deliveryTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/// One direction of the link.
+	private static class Direction {
+		private volatile Conditions conditions;
+		private Random random;
+		private DelayQueue<Packet> queue = new DelayQueue<Packet>();
+		private long lastDeliveryTime = 0; // Delivery time of the latest packet that kept its order.
+		private long linkFreeTime = 0; // Time when the bandwidth limited link is done sending the queued packets.
+		private long nextOrder = 0;
+
+		// Statistics
+		private volatile long packets = 0;
+		private volatile long lost = 0;
+		private volatile long duplicated = 0;
+
+		Direction(Conditions conditions, long seed) {
+			this.conditions = (conditions != null) ? conditions : new Conditions();
+			this.random = new Random(seed);
+		}
+
+		/// Passes a packet into the link, all random decisions are made here so that they only depend on the order of the packets.
+		synchronized void add(ByteBuffer data, InetSocketAddress addr) {
+			Conditions c = conditions;
+			long now = System.currentTimeMillis();
+			packets++;
+
+			if(random.nextFloat() < c.loss) {
+				lost++;
+				return;
+			}
+
+			int position = data.position();
+			int size = data.remaining();
+			if(c.bandwidth > 0) {
+				// The packet has to wait for the packets before it to leave the link
+				long start = Math.max(now, linkFreeTime);
+				if(start - now > c.maxQueueDelay) {
+					lost++;
+					return;
+				}
+				linkFreeTime = start + (size * 1000L) / c.bandwidth;
+				now = linkFreeTime;
+			}
+
+			int copies = (random.nextFloat() < c.duplication) ? 2 : 1;
+			duplicated += copies - 1;
+			for(int i = 0; i < copies; ++i) {
+				long deliveryTime = now + c.latency + ((c.jitter > 0) ? (long)(random.nextDouble() * c.jitter) : 0);
+				if(c.reorder > 0.0f && random.nextFloat() < c.reorder) {
+					deliveryTime += (long)(random.nextDouble() * Math.max(c.jitter, c.latency));
+				} else {
+					// Jitter alone never reorders packets
+					deliveryTime = Math.max(deliveryTime, lastDeliveryTime);
+					lastDeliveryTime = deliveryTime;
+				}
+
+				Packet packet = new Packet();
+				packet.data = ByteBuffer.allocate(size);
+				packet.data.put(data);
+				packet.data.flip();
+				data.position(position);
+				packet.addr = addr;
+				packet.deliveryTime = deliveryTime;
+				packet.order = nextOrder++;
+				queue.add(packet);
+			}
+		}
+	}
+
+	private Transport transport;
+	private Direction outgoing;
+	private Direction incoming;
+	private volatile boolean quit = false;
+
+	/// Constructor
+	/// @param transport Transport the emulated link sends and receives packets on.
+	/// @param seed Seed of the random decisions.
+	/// @param outgoing Conditions of packets sent by NetWrite, null for a perfect link.
+	/// @param incoming Conditions of packets received by NetRead, null for a perfect link.
+	public LinkEmulator(Transport transport, long seed, Conditions outgoing, Conditions incoming) {
+		this.transport = transport;
+		this.outgoing = new Direction(outgoing, seed);
+		this.incoming = new Direction(incoming, seed ^ 0x5DEECE66DL);
+	}
+
+	/// @brief Starts the threads receiving from and sending to the underlying transport.
+	public void start() {
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveLoop();
+			}
+		}, "LinkEmulator receive");
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sendLoop();
+			}
+		}, "LinkEmulator send");
+		receiver.setDaemon(true);
+		sender.setDaemon(true);
+		receiver.start();
+		sender.start();
+	}
+
+
+	/// @brief Changes the conditions of the link, packets already in the link are not affected.
+	/// @param outgoing Conditions of packets sent by NetWrite, null for a perfect link.
+	/// @param incoming Conditions of packets received by NetRead, null for a perfect link.
+	public void setConditions(Conditions outgoing, Conditions incoming) {
+		this.outgoing.conditions = (outgoing != null) ? outgoing : new Conditions();
+		this.incoming.conditions = (incoming != null) ? incoming : new Conditions();
+	}
+
+	/// @brief Passes a packet into the outgoing side of the link.
+	@Override
+	public void send(ByteBuffer data, InetSocketAddress dest) throws IOException {
+		if(quit) {
+			throw new ClosedChannelException();
+		}
+		outgoing.add(data, dest);
+	}
+
+	/// @brief Receives the next packet coming out of the incoming side of the link.
+	@Override
+	public InetSocketAddress receive(ByteBuffer buf) throws IOException {
+		if(quit) {
+			throw new ClosedChannelException();
+		}
+		Packet packet;
+		try {
+			packet = incoming.queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if(packet == null) {
+			return null;
+		}
+		buf.put(packet.data);
+		return packet.addr;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return transport.getLocalAddress();
+	}
+
+	/// @brief Stops the threads and closes the underlying transport, packets still in the link are dropped.
+	@Override
+	public void close() throws IOException {
+		quit = true;
+		transport.close();
+	}
+
+	/// @return A summary of how many packets have been lost and duplicated in each direction.
+	public String getStats() {
+		return "out: " + outgoing.packets + " packets, " + outgoing.lost + " lost, " + outgoing.duplicated + " duplicated; "
+				+ "in: " + incoming.packets + " packets, " + incoming.lost + " lost, " + incoming.duplicated + " duplicated";
+	}
+
+	private void receiveLoop() {
+		ByteBuffer buf = ByteBuffer.allocateDirect(NetWrite.MAX_PACKET_SIZE);
+		try {
+			while(!quit) {
+				buf.clear();
+				InetSocketAddress sender = transport.receive(buf);
+				if(sender == null) {
+					continue;
+				}
+				buf.flip();
+				incoming.add(buf, sender);
+			}
+		} catch (ClosedChannelException e) {
+			// Transport closed, just quit.
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void sendLoop() {
+		try {
+			while(!quit) {
+				Packet packet = outgoing.queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+				if(packet != null) {
+					transport.send(packet.data, packet.addr);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// Transport closed, just quit.
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
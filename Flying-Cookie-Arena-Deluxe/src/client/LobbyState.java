@@ -91,7 +91,8 @@ public class LobbyState implements GameState {
 
 	    ChatMessage chatMsg = new ChatMessage(text);
 	    try {
-	    	Application.getInstance().getSession().sendToAll(chatMsg, true);
+	    	// Chat doesn't depend on any other message, so it's never held back behind a lost game event
+	    	Application.getInstance().getSession().sendToAll(chatMsg, MessageChannel.RELIABLE_UNORDERED);
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -0,0 +1,152 @@
+package client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/// Transport passing packets between transports of the same Network, within a single process.
+/// No sockets are involved and packets are never lost or reordered, every transport receives packets
+///	in the order they were sent to it. Many sessions can run side by side in one process, which is
+///	used for load and latency tests of the protocol. Combine with LinkEmulator for a bad network.
+public class LoopbackTransport implements Transport {
+	private static final int QUEUE_SIZE = 4096; // Packets waiting to be received, later packets are dropped like by a full socket buffer.
+	private static final long POLL_TIMEOUT = 100; // Time in ms receive waits before returning without a packet.
+
+	/// A set of loopback transports that can send packets to each other.
+	/// Every transport is given a unique port on 127.0.0.1.
+	public static class Network implements Transport.Factory {
+		private ConcurrentHashMap<InetSocketAddress, LoopbackTransport> transports = new ConcurrentHashMap<InetSocketAddress, LoopbackTransport>();
+		private InetAddress address;
+		private int nextPort = 50000;
+
+		public Network() {
+			try {
+				address = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public synchronized Transport open(int port) throws IOException {
+			if(port == 0) {
+				while(transports.containsKey(new InetSocketAddress(address, nextPort))) {
+					nextPort++;
+				}
+				port = nextPort++;
+			}
+			InetSocketAddress addr = new InetSocketAddress(address, port);
+			if(transports.containsKey(addr)) {
+				throw new BindException("Address already in use: " + addr);
+			}
+			LoopbackTransport transport = new LoopbackTransport(this, addr);
+			transports.put(addr, transport);
+			return transport;
+		}
+
+		/// @return Number of transports currently open.
+		public int getTransportCount() {
+			return transports.size();
+		}
+	}
+
+	/// A packet waiting to be received.
+	private static class Packet {
+		byte[] data;
+		InetSocketAddress sender;
+	}
+
+	private Network network;
+	private InetSocketAddress addr;
+	private LinkedBlockingQueue<Packet> queue = new LinkedBlockingQueue<Packet>(QUEUE_SIZE);
+	private volatile boolean closed = false;
+
+	// Statistics, each only updated by the sending or the receiving thread.
+	private volatile long bytesSent = 0;
+	private volatile long bytesReceived = 0;
+	private volatile long packetsSent = 0;
+	private volatile long packetsReceived = 0;
+
+	private LoopbackTransport(Network network, InetSocketAddress addr) {
+		this.network = network;
+		this.addr = addr;
+	}
+
+	@Override
+	public void send(ByteBuffer data, InetSocketAddress dest) throws IOException {
+		if(closed) {
+			throw new ClosedChannelException();
+		}
+		Packet packet = new Packet();
+		packet.data = new byte[data.remaining()];
+		data.get(packet.data);
+		packet.sender = addr;
+		bytesSent += packet.data.length;
+		packetsSent++;
+
+		// Like UDP, packets to an unknown address or a full queue are silently lost
+		LoopbackTransport target = network.transports.get(dest);
+		if(target != null) {
+			target.queue.offer(packet);
+		}
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buf) throws IOException {
+		if(closed) {
+			throw new ClosedChannelException();
+		}
+		Packet packet;
+		try {
+			packet = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		if(packet == null) {
+			return null;
+		}
+		// Like UDP, the packet is truncated if it doesn't fit in the buffer
+		buf.put(packet.data, 0, Math.min(packet.data.length, buf.remaining()));
+		bytesReceived += packet.data.length;
+		packetsReceived++;
+		return packet.sender;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return addr;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		network.transports.remove(addr, this);
+	}
+
+	/// @return Total size of all packets sent, in bytes.
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/// @return Total size of all packets received, in bytes.
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/// @return Number of packets sent.
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	/// @return Number of packets received.
+	public long getPacketsReceived() {
+		return packetsReceived;
+	}
+}
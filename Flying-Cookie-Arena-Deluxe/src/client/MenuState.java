@@ -318,7 +318,7 @@ public class MenuState implements GameState {
 				
 			}
 		};
-		Application.getInstance().getSession().setReadDelay(0);
+		Application.getInstance().getSession().setLinkEmulation(null, null, 0);
 		try {
 			Application.getInstance().getSession().disconnect();
 			Application.getInstance().getSession().connectToSession(InetAddress.getByName(ip), Application.GAME_PORT, callback);
@@ -35,11 +35,11 @@ public abstract class Message implements Serializable {
 	};
 	
 	Type type;
-	int peer; // Peer that sent this message
+	int peer = -1; // Peer that sent this message, set by NetWrite when the message is sent.
+	int channelSequence = -1; // Sequence in the RELIABLE_ORDERED channel, only set on received messages.
 	
 	public Message(Type type) {
 		this.type = type;
-		this.peer = Application.getInstance().getSession().getMyPeerId();
 	}
 }
 
@@ -48,6 +48,9 @@ public abstract class Message implements Serializable {
 class HelloMessage extends Message {
 	
 	private static final long serialVersionUID = -2521784129383032208L;
+	static final int FEATURE_COMPRESSION = 0x1; // The peer can receive compressed messages.
+
+	public int features = 0; // Optional features supported by the sending peer.
 
 	public HelloMessage() {
 		super(Type.HELLO);
@@ -58,6 +61,7 @@ class HelloMessage extends Message {
 class PeerIdMessage extends Message {
 	private static final long serialVersionUID = -2636395897207369412L;
 	public int peerId; // New peers id.
+	public int features = 0; // Optional features supported by the master peer, see HelloMessage.
 	
 	public PeerIdMessage(int peerId) {
 		super(Type.PEER_ID);
@@ -74,11 +78,13 @@ class PeerListMessage extends Message {
 		public int peerId;
 		public InetAddress addr;
 		public int port;
+		public int features; // Optional features supported by the peer, see HelloMessage.
 		
-		RawPeer(int peerId, InetAddress addr, int port) {
+		RawPeer(int peerId, InetAddress addr, int port, int features) {
 			this.peerId = peerId;
 			this.addr = addr;
 			this.port = port;
+			this.features = features;
 		}
 	}
 	public ArrayList<RawPeer> peers = new ArrayList<RawPeer>();
@@ -91,16 +97,32 @@ class PeerListMessage extends Message {
 class PingMessage extends Message {
 	private static final long serialVersionUID = -1182365839943998551L;
 
+	public long sendTime; // Clock of the sender when the ping was sent.
+
 	public PingMessage() {
 		super(Type.PING);
+		this.sendTime = System.currentTimeMillis();
 	}
 }
-/* response message to a Ping message*/
+/* response message to a Ping message, the times are used for clock synchronization, see ClockSync */
 class PongMessage extends Message {
 	private static final long serialVersionUID = 5844168245440896356L;
 
+	public long pingSendTime; // sendTime of the ping, echoed back.
+	public long pingReceiveTime; // Clock of the sender of the pong when the ping was received.
+	public long sendTime; // Clock of the sender of the pong when the pong was sent.
+
 	public PongMessage() {
 		super(Type.PONG);
+		this.sendTime = System.currentTimeMillis();
+	}
+
+	/// @param ping The ping to respond to.
+	/// @param pingReceiveTime When the ping was received.
+	public PongMessage(PingMessage ping, long pingReceiveTime) {
+		this();
+		this.pingSendTime = ping.sendTime;
+		this.pingReceiveTime = pingReceiveTime;
 	}
 }
 /* message when a peer time outs */
@@ -171,6 +193,8 @@ class EntityStateMessage extends Message {
 	public Vector3f velocity;
 	public Serializable customData;
 	public long timestamp;
+	public int sequence; // Increased for every state built for the entity, used for delta compression.
+	transient byte[] encodedCustomData; // Serialized customData, cached by the first encode so sending to more peers is cheap.
 	
 	EntityStateMessage(int entityId, Vector3f position, Quaternion rotation, Vector3f velocity) {
 		super(Type.ENTITY_STATE);
@@ -0,0 +1,10 @@
+package client;
+
+/// Delivery guarantees a message can be sent with, see NetWrite.send.
+/// Each channel is independent, a message waiting for an earlier message on the ordered channel
+///	never holds back messages on the other channels.
+public enum MessageChannel {
+	UNRELIABLE, // May be lost or arrive in any order, used for frequent state updates.
+	RELIABLE_UNORDERED, // Always arrives, but in any order, used for chat.
+	RELIABLE_ORDERED // Always arrives, in the order it was sent. Has its own sequence numbers per connection.
+}
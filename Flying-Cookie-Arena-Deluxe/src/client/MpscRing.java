@@ -0,0 +1,99 @@
+package client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Bounded lock-free queue for any number of producer threads and a single consumer thread.
+/// Based on Dmitry Vyukov's bounded MPMC queue: every slot has a sequence number telling whether it's
+///	free for the producer claiming position p (sequence == p) or holds an element for the consumer at
+///	position p (sequence == p + 1). Producers claim positions with a CAS, the consumer needs none as it's alone.
+///	Writing the sequence after the element publishes the element to the other side.
+/// The elements are created up front and stay in their slots, a producer fills in the element of the slot
+///	it claimed and the consumer reads it in place, so nothing is allocated per element.
+class MpscRing<E> {
+	/// Creates the elements of the slots.
+	interface Factory<E> {
+		public E create();
+	}
+
+	private final int mask;
+	private final Object[] elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong producerPosition = new AtomicLong();
+	private volatile long consumerPosition = 0; // Only written by the consumer, read by size.
+
+	/// Constructor
+	/// @param capacity Maximum number of elements, rounded up to a power of two.
+	/// @param factory Creates the element of every slot.
+	public MpscRing(int capacity, Factory<E> factory) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		elements = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; ++i) {
+			elements[i] = factory.create();
+			sequences.set(i, i);
+		}
+	}
+
+	/// @brief Claims the next free slot, may be called by any thread.
+	/// The element of the slot can then be filled in, see get, and handed to the consumer with publish.
+	/// @return Position of the slot, or -1 if the queue is full.
+	public long claim() {
+		long position = producerPosition.get();
+		while(true) {
+			long d = sequences.get((int)position & mask) - position;
+			if(d == 0) {
+				if(producerPosition.compareAndSet(position, position + 1)) {
+					return position;
+				}
+				position = producerPosition.get();
+			}
+			else if(d < 0) {
+				// The slot still holds the element from the previous lap
+				return -1;
+			}
+			else {
+				// Another producer claimed the position
+				position = producerPosition.get();
+			}
+		}
+	}
+
+	/// @return The element of the slot at the specified position, only to be used by the thread that claimed it.
+	@SuppressWarnings("unchecked")
+	public E get(long position) {
+		return (E)elements[(int)position & mask];
+	}
+
+	/// @brief Hands the element of a claimed slot to the consumer.
+	public void publish(long position) {
+		sequences.lazySet((int)position & mask, position + 1);
+	}
+
+	/// @brief Returns the oldest element without removing it, may only be called by the consumer thread.
+	/// The element stays valid until release is called.
+	/// @return The element, or null if the queue is empty.
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long position = consumerPosition;
+		int slot = (int)position & mask;
+		if(sequences.get(slot) != position + 1) {
+			return null; // Empty, or the producer of the next element hasn't published it yet
+		}
+		return (E)elements[slot];
+	}
+
+	/// @brief Frees the slot of the element returned by peek, may only be called by the consumer thread.
+	public void release() {
+		long position = consumerPosition;
+		// Frees the slot for the producer one lap ahead
+		sequences.lazySet((int)position & mask, position + mask + 1);
+		consumerPosition = position + 1;
+	}
+
+	/// @return Approximate number of elements, may be called by any thread.
+	public int size() {
+		return (int)Math.max(0, producerPosition.get() - consumerPosition);
+	}
+}
@@ -0,0 +1,600 @@
+package client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Binary wire format for packets and messages.
+/// A packet is a fixed size header followed by any number of message records. Each record is the
+///	length of the message followed by a one byte type tag (The ordinal of its Message.Type),
+///	the id of the sending peer and the fields of the message. A record may also hold a fragment of
+///	a larger message, tagged with FRAGMENT_TAG instead. Each message type has its own
+///	codec registered in the static block at the bottom of this class. Java serialization is
+///	only used for the opaque customData payload of entity messages.
+final class NetCodec {
+	static final int HEADER_SIZE = 17; // Size of the packet header written by writeHeader.
+	static final int RECORD_HEADER_SIZE = 2; // Size of the length prefix of each message record.
+	static final int FRAGMENT_HEADER_SIZE = 9; // Tag, group, index and count of a fragment record.
+	static final int FRAGMENT_TAG = 0xFF; // Type tag of fragment records, never used by a message type.
+	static final int ORDERED_TAG = 0xFE; // Prefix of messages on the RELIABLE_ORDERED channel, followed by their sequence.
+	static final int ORDERED_PREFIX_SIZE = 5; // Size of the prefix written by writeOrdered.
+	static final int COMPRESSED_TAG = 0xFD; // Marks a deflated message, followed by its uncompressed size.
+	static final int COMPRESSED_HEADER_SIZE = 5; // Tag and size written by writeCompressed.
+
+	/// Reads and writes the fields of a specific message type.
+	interface MessageCodec<T extends Message> {
+		/// @brief Writes the fields of the message to the buffer.
+		/// @param conn The connection the message is written for.
+		public void write(T msg, ByteBuffer buf, Connection conn) throws IOException;
+		/// @brief Reads a message from the buffer, the type tag and sender have already been consumed.
+		/// @param conn The connection the message was received from.
+		/// @return The message, or null if the message should be dropped.
+		public T read(ByteBuffer buf, Connection conn) throws IOException;
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Message.Type[] TYPES = Message.Type.values();
+	private static final Entity.Type[] ENTITY_TYPES = Entity.Type.values();
+	private static final MessageCodec<?>[] codecs = new MessageCodec<?>[TYPES.length];
+
+	private NetCodec() {}
+
+	/// @brief Registers the codec used for the specified message type.
+	/// @remark Will overwrite any existing codec for that type.
+	static <T extends Message> void register(Message.Type type, MessageCodec<T> codec) {
+		codecs[type.ordinal()] = codec;
+	}
+
+	/// @brief Writes the packet header, the payload is expected to follow.
+	/// @param sequence Sequence number of this transmission of the packet.
+	/// @param ack Latest sequence received from the destination.
+	/// @param ackBits Which of the 32 sequences before ack that have been received.
+	static void writeHeader(int type, int id, int sequence, int ack, int ackBits, ByteBuffer buf) {
+		buf.put((byte)type);
+		buf.putInt(id);
+		buf.putInt(sequence);
+		buf.putInt(ack);
+		buf.putInt(ackBits);
+	}
+
+	/// @brief Reads a packet header.
+	/// For message packets the buffer is left at the first message record, see readRecord.
+	static NetPacket readPacket(ByteBuffer buf) throws IOException {
+		int type = buf.get();
+		if(type != NetPacket.MESSAGE && type != NetPacket.RELIABLE_MESSAGE && type != NetPacket.ACK) {
+			throw new IOException("Unknown packet type: " + type);
+		}
+
+		NetPacket packet = new NetPacket(type, buf.getInt());
+		packet.sequence = buf.getInt();
+		packet.ack = buf.getInt();
+		packet.ackBits = buf.getInt();
+		return packet;
+	}
+
+	/// @brief Appends an already encoded message as a record to a packet.
+	/// @param msg Encoded message, from position to limit.
+	static void writeRecord(ByteBuffer msg, ByteBuffer packet) {
+		packet.putShort((short)msg.remaining());
+		packet.put(msg);
+	}
+
+	/// @brief Appends a record holding a fragment of an encoded message to a packet.
+	/// @param msg Encoded message, the fragment is the next length bytes from its position.
+	/// @param group Id shared by all fragments of the message.
+	static void writeFragment(ByteBuffer msg, int length, int group, int index, int count, ByteBuffer packet) {
+		packet.putShort((short)(FRAGMENT_HEADER_SIZE + length));
+		packet.put((byte)FRAGMENT_TAG);
+		packet.putInt(group);
+		packet.putShort((short)index);
+		packet.putShort((short)count);
+
+		int limit = msg.limit();
+		msg.limit(msg.position() + length);
+		packet.put(msg);
+		msg.limit(limit);
+	}
+
+	/// @brief Reads the next message record of a packet.
+	/// If the record is the last missing fragment of a message the whole message is returned.
+	/// @return The message, or null if the record could not be decoded or was an incomplete fragment.
+	///		The buffer is always left at the start of the next record.
+	static Message readRecord(ByteBuffer buf, Connection conn) {
+		int length = buf.getShort() & 0xFFFF;
+		int end = buf.position() + length;
+		int limit = buf.limit();
+		if(end > limit) {
+			// Truncated record
+			buf.position(limit);
+			return null;
+		}
+
+		Message msg = null;
+		buf.limit(end);
+		try {
+			if((buf.get(buf.position()) & 0xFF) == FRAGMENT_TAG) {
+				buf.get();
+				int group = buf.getInt();
+				int index = buf.getShort() & 0xFFFF;
+				int count = buf.getShort() & 0xFFFF;
+				ByteBuffer whole = conn.fragments.add(group, index, count, buf);
+				if(whole != null) {
+					msg = readMessage(whole, conn);
+				}
+			} else {
+				msg = readMessage(buf, conn);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+		buf.limit(limit);
+		buf.position(end);
+		return msg;
+	}
+
+	/// @brief Reserves the space of every fragmented message with a fragment in a reliable packet, see FragmentAssembler.reserve.
+	/// @param buf Packet positioned at its first message record, left unchanged.
+	/// @return False if a message doesn't fit and the packet should be dropped without an ack.
+	static boolean reserveFragments(ByteBuffer buf, Connection conn) {
+		int position = buf.position();
+		while(position + RECORD_HEADER_SIZE <= buf.limit()) {
+			int start = position + RECORD_HEADER_SIZE;
+			int end = start + (buf.getShort(position) & 0xFFFF);
+			if(end > buf.limit()) {
+				break; // Truncated record, dropped by readRecord
+			}
+			if(end - start >= FRAGMENT_HEADER_SIZE && (buf.get(start) & 0xFF) == FRAGMENT_TAG) {
+				int group = buf.getInt(start + 1);
+				int count = buf.getShort(start + 7) & 0xFFFF;
+				if(!conn.fragments.reserve(group, count)) {
+					return false;
+				}
+			}
+			position = end;
+		}
+		return true;
+	}
+
+	/// @brief Writes the prefix marking the following message as part of the RELIABLE_ORDERED channel.
+	static void writeOrdered(int sequence, ByteBuffer buf) {
+		buf.put((byte)ORDERED_TAG);
+		buf.putInt(sequence);
+	}
+
+	/// @brief Writes a message compressed with deflate, in place of a message written by writeMessage.
+	/// @param size Size of the message before compression.
+	static void writeCompressed(int size, byte[] compressed, int compressedSize, ByteBuffer buf) {
+		buf.put((byte)COMPRESSED_TAG);
+		buf.putInt(size);
+		buf.put(compressed, 0, compressedSize);
+	}
+
+	/// @brief Reads a message written by writeCompressed, the tag have already been consumed.
+	/// @return The decompressed message, positioned at its type tag.
+	static ByteBuffer readCompressed(ByteBuffer buf, Connection conn) throws IOException {
+		int size = buf.getInt();
+		if(size < 0 || size > NetWrite.MAX_MESSAGE_SIZE) {
+			throw new IOException("Invalid size of compressed message: " + size);
+		}
+		byte[] input = new byte[buf.remaining()];
+		buf.get(input);
+		byte[] output = new byte[size];
+
+		Inflater inflater = conn.inflater();
+		inflater.reset();
+		inflater.setInput(input);
+		try {
+			if(inflater.inflate(output) != size || !inflater.finished()) {
+				throw new IOException("Compressed message doesn't match its size.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed message: " + e.getMessage());
+		}
+		return ByteBuffer.wrap(output);
+	}
+
+	/// @brief Writes the type tag, the sender and the body of the message.
+	@SuppressWarnings("unchecked")
+	static void writeMessage(Message msg, ByteBuffer buf, Connection conn) throws IOException {
+		MessageCodec<Message> codec = (MessageCodec<Message>)codecs[msg.type.ordinal()];
+		if(codec == null) {
+			throw new IOException("No codec registered for message type " + msg.type);
+		}
+		buf.put((byte)msg.type.ordinal());
+		buf.putInt(msg.peer);
+		codec.write(msg, buf, conn);
+	}
+
+	/// @brief Reads a message written by writeMessage or writeCompressed, with or without the prefix written by writeOrdered.
+	/// The message is counted in the stats of the connection even if the codec drops it.
+	static Message readMessage(ByteBuffer buf, Connection conn) throws IOException {
+		int size = buf.remaining();
+		int tag = buf.get() & 0xFF;
+		int channelSequence = -1;
+		if(tag == ORDERED_TAG) {
+			channelSequence = buf.getInt();
+			tag = buf.get() & 0xFF;
+		}
+		if(tag == COMPRESSED_TAG) {
+			buf = readCompressed(buf, conn);
+			tag = buf.get() & 0xFF;
+		}
+		if(tag >= TYPES.length || codecs[tag] == null) {
+			throw new IOException("Unknown message type: " + tag);
+		}
+		if(conn != null) {
+			conn.stats.messageReceived(TYPES[tag], size);
+		}
+		int peer = buf.getInt();
+		Message msg = codecs[tag].read(buf, conn);
+		if(msg != null) {
+			msg.peer = peer;
+			msg.channelSequence = channelSequence;
+		}
+		return msg;
+	}
+
+	/// @brief Writes an int as an unsigned variable length integer, 7 bits per byte with the high bit set on all but the last byte.
+	/// Small values take a single byte, negative values take 5 bytes.
+	static void writeVarInt(int value, ByteBuffer buf) {
+		while((value & ~0x7F) != 0) {
+			buf.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte)value);
+	}
+
+	static int readVarInt(ByteBuffer buf) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = buf.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed variable length integer.");
+	}
+
+	static void writeVector3f(Vector3f v, ByteBuffer buf) {
+		if(v == null) {
+			buf.put((byte)0);
+			return;
+		}
+		buf.put((byte)1);
+		buf.putFloat(v.x);
+		buf.putFloat(v.y);
+		buf.putFloat(v.z);
+	}
+
+	static Vector3f readVector3f(ByteBuffer buf) {
+		if(buf.get() == 0) {
+			return null;
+		}
+		return new Vector3f(buf.getFloat(), buf.getFloat(), buf.getFloat());
+	}
+
+	static void writeQuaternion(Quaternion q, ByteBuffer buf) {
+		if(q == null) {
+			buf.put((byte)0);
+			return;
+		}
+		buf.put((byte)1);
+		buf.putFloat(q.getX());
+		buf.putFloat(q.getY());
+		buf.putFloat(q.getZ());
+		buf.putFloat(q.getW());
+	}
+
+	static Quaternion readQuaternion(ByteBuffer buf) {
+		if(buf.get() == 0) {
+			return null;
+		}
+		return new Quaternion(buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat());
+	}
+
+	static void writeString(String s, ByteBuffer buf) {
+		if(s == null) {
+			buf.putShort((short)-1);
+			return;
+		}
+		byte[] data = s.getBytes(UTF8);
+		buf.putShort((short)data.length);
+		buf.put(data);
+	}
+
+	static String readString(ByteBuffer buf) {
+		int length = buf.getShort();
+		if(length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		buf.get(data);
+		return new String(data, UTF8);
+	}
+
+	static void writeInetAddress(InetAddress addr, ByteBuffer buf) {
+		if(addr == null) {
+			buf.put((byte)0);
+			return;
+		}
+		byte[] data = addr.getAddress();
+		buf.put((byte)data.length);
+		buf.put(data);
+	}
+
+	static InetAddress readInetAddress(ByteBuffer buf) throws IOException {
+		int length = buf.get();
+		if(length == 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		buf.get(data);
+		return InetAddress.getByAddress(data);
+	}
+
+	/// @brief Writes an opaque object using Java serialization, prefixed with its length.
+	static void writeSerializable(Serializable obj, ByteBuffer buf) throws IOException {
+		if(obj == null) {
+			buf.putInt(-1);
+			return;
+		}
+		byte[] data = serialize(obj);
+		buf.putInt(data.length);
+		buf.put(data);
+	}
+
+	/// @return The object serialized using Java serialization.
+	static byte[] serialize(Serializable obj) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(obj);
+		oos.close();
+		return bos.toByteArray();
+	}
+
+	static Serializable readSerializable(ByteBuffer buf) throws IOException {
+		int length = buf.getInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		buf.get(data);
+
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return (Serializable) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			ois.close();
+		}
+	}
+
+	/// @brief Writes the full state carried by an ENTITY_EVENT, see EntityBaselines for ENTITY_STATE.
+	static void writeEntityState(EntityStateMessage msg, ByteBuffer buf) throws IOException {
+		buf.putInt(msg.entityId);
+		buf.putLong(msg.timestamp);
+		writeVector3f(msg.position, buf);
+		writeQuaternion(msg.rotation, buf);
+		writeVector3f(msg.velocity, buf);
+		writeSerializable(msg.customData, buf);
+	}
+
+	static EntityStateMessage readEntityState(ByteBuffer buf) throws IOException {
+		int entityId = buf.getInt();
+		long timestamp = buf.getLong();
+		EntityStateMessage msg = new EntityStateMessage(entityId, readVector3f(buf), readQuaternion(buf),
+				readVector3f(buf), readSerializable(buf));
+		msg.timestamp = timestamp;
+		return msg;
+	}
+
+	static {
+		register(Message.Type.HELLO, new MessageCodec<HelloMessage>() {
+			@Override
+			public void write(HelloMessage msg, ByteBuffer buf, Connection conn) {
+				buf.put((byte)msg.features);
+			}
+
+			@Override
+			public HelloMessage read(ByteBuffer buf, Connection conn) {
+				HelloMessage msg = new HelloMessage();
+				msg.features = buf.get() & 0xFF;
+				return msg;
+			}
+		});
+		register(Message.Type.PEER_ID, new MessageCodec<PeerIdMessage>() {
+			@Override
+			public void write(PeerIdMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putInt(msg.peerId);
+				buf.put((byte)msg.features);
+			}
+
+			@Override
+			public PeerIdMessage read(ByteBuffer buf, Connection conn) {
+				PeerIdMessage msg = new PeerIdMessage(buf.getInt());
+				msg.features = buf.get() & 0xFF;
+				return msg;
+			}
+		});
+		register(Message.Type.PEER_LIST, new MessageCodec<PeerListMessage>() {
+			@Override
+			public void write(PeerListMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putShort((short)msg.peers.size());
+				for(PeerListMessage.RawPeer p : msg.peers) {
+					buf.putInt(p.peerId);
+					writeInetAddress(p.addr, buf);
+					buf.putInt(p.port);
+					buf.put((byte)p.features);
+				}
+			}
+
+			@Override
+			public PeerListMessage read(ByteBuffer buf, Connection conn) throws IOException {
+				PeerListMessage msg = new PeerListMessage();
+				int count = buf.getShort();
+				for(int i = 0; i < count; ++i) {
+					int peerId = buf.getInt();
+					InetAddress addr = readInetAddress(buf);
+					int port = buf.getInt();
+					msg.peers.add(msg.new RawPeer(peerId, addr, port, buf.get() & 0xFF));
+				}
+				return msg;
+			}
+		});
+		register(Message.Type.PING, new MessageCodec<PingMessage>() {
+			@Override
+			public void write(PingMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putLong(msg.sendTime);
+			}
+
+			@Override
+			public PingMessage read(ByteBuffer buf, Connection conn) {
+				PingMessage msg = new PingMessage();
+				msg.sendTime = buf.getLong();
+				return msg;
+			}
+		});
+		register(Message.Type.PONG, new MessageCodec<PongMessage>() {
+			@Override
+			public void write(PongMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putLong(msg.pingSendTime);
+				buf.putLong(msg.pingReceiveTime);
+				buf.putLong(msg.sendTime);
+			}
+
+			@Override
+			public PongMessage read(ByteBuffer buf, Connection conn) {
+				PongMessage msg = new PongMessage();
+				msg.pingSendTime = buf.getLong();
+				msg.pingReceiveTime = buf.getLong();
+				msg.sendTime = buf.getLong();
+				return msg;
+			}
+		});
+		register(Message.Type.PEER_TIMED_OUT, new MessageCodec<PeerTimeOutMessage>() {
+			@Override
+			public void write(PeerTimeOutMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putInt(msg.timedOutPeerId);
+			}
+
+			@Override
+			public PeerTimeOutMessage read(ByteBuffer buf, Connection conn) {
+				return new PeerTimeOutMessage(buf.getInt());
+			}
+		});
+		register(Message.Type.KICKED, new MessageCodec<KickedMessage>() {
+			@Override
+			public void write(KickedMessage msg, ByteBuffer buf, Connection conn) {
+				writeString(msg.reason, buf);
+			}
+
+			@Override
+			public KickedMessage read(ByteBuffer buf, Connection conn) {
+				return new KickedMessage(readString(buf));
+			}
+		});
+		register(Message.Type.CHAT_MSG, new MessageCodec<ChatMessage>() {
+			@Override
+			public void write(ChatMessage msg, ByteBuffer buf, Connection conn) {
+				writeString(msg.message, buf);
+			}
+
+			@Override
+			public ChatMessage read(ByteBuffer buf, Connection conn) {
+				return new ChatMessage(readString(buf));
+			}
+		});
+		register(Message.Type.CREATE_ENTITY, new MessageCodec<CreateEntityMessage>() {
+			@Override
+			public void write(CreateEntityMessage msg, ByteBuffer buf, Connection conn) throws IOException {
+				buf.putInt(msg.entityId);
+				buf.put((byte)msg.entityType.ordinal());
+				writeVector3f(msg.position, buf);
+				writeQuaternion(msg.rotation, buf);
+				writeSerializable(msg.customData, buf);
+			}
+
+			@Override
+			public CreateEntityMessage read(ByteBuffer buf, Connection conn) throws IOException {
+				int entityId = buf.getInt();
+				Entity.Type entityType = ENTITY_TYPES[buf.get()];
+				CreateEntityMessage msg = new CreateEntityMessage(entityId, entityType,
+						readVector3f(buf), readQuaternion(buf));
+				msg.customData = readSerializable(buf);
+				return msg;
+			}
+		});
+		register(Message.Type.DESTROY_ENTITY, new MessageCodec<DestroyEntityMessage>() {
+			@Override
+			public void write(DestroyEntityMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putInt(msg.entityId);
+			}
+
+			@Override
+			public DestroyEntityMessage read(ByteBuffer buf, Connection conn) {
+				return new DestroyEntityMessage(buf.getInt());
+			}
+		});
+		register(Message.Type.ENTITY_STATE, new MessageCodec<EntityStateMessage>() {
+			@Override
+			public void write(EntityStateMessage msg, ByteBuffer buf, Connection conn) throws IOException {
+				conn.baselines.write(msg, buf);
+			}
+
+			@Override
+			public EntityStateMessage read(ByteBuffer buf, Connection conn) throws IOException {
+				return conn.baselines.read(buf);
+			}
+		});
+		register(Message.Type.ENTITY_EVENT, new MessageCodec<EntityEventMessage>() {
+			@Override
+			public void write(EntityEventMessage msg, ByteBuffer buf, Connection conn) throws IOException {
+				writeEntityState(msg.state, buf);
+			}
+
+			@Override
+			public EntityEventMessage read(ByteBuffer buf, Connection conn) throws IOException {
+				return new EntityEventMessage(readEntityState(buf));
+			}
+		});
+		register(Message.Type.ENTITY_OWNER_CHANGE, new MessageCodec<EntityNewOwnerMessage>() {
+			@Override
+			public void write(EntityNewOwnerMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putInt(msg.ownerId);
+				buf.putInt(msg.entityId);
+			}
+
+			@Override
+			public EntityNewOwnerMessage read(ByteBuffer buf, Connection conn) {
+				int ownerId = buf.getInt();
+				return new EntityNewOwnerMessage(ownerId, buf.getInt());
+			}
+		});
+		register(Message.Type.ENTITY_REQ_OWN_CHANGE, new MessageCodec<EntityRequestOwnerMessage>() {
+			@Override
+			public void write(EntityRequestOwnerMessage msg, ByteBuffer buf, Connection conn) {
+				buf.putInt(msg.entityId);
+			}
+
+			@Override
+			public EntityRequestOwnerMessage read(ByteBuffer buf, Connection conn) {
+				return new EntityRequestOwnerMessage(buf.getInt());
+			}
+		});
+	}
+}
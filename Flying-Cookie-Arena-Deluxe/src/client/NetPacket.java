@@ -1,35 +1,28 @@
 package client;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-
-public class NetPacket implements Serializable {
+/// Header of a packet sent over the network, see NetCodec for the binary layout.
+/// Message packets carry one or more coalesced messages after the header.
+/// Every header also acknowledges the latest packets received from the destination.
+public class NetPacket {
 	public static final int MESSAGE = 0;
 	public static final int RELIABLE_MESSAGE = 1; // Reliable messages requires an acknowledgement from the receiver.
-	public static final int ACK = 2;
+	public static final int ACK = 2; // Only a header, sent when there is no other packet to carry pending acks.
 	
 	public int id;
 	public int type;
-	public long sentTime; // Time when the packet was last sent.
-	public long sentTimeFirst; // Time when the packet was first sent. 
+	public int sequence = -1; // Sequence number of this transmission, a resent packet gets a new sequence.
+	public int ack = -1; // Latest sequence received by the sender of this packet, -1 if none.
+	public int ackBits = 0; // Bit n is set if sequence ack - 1 - n have also been received.
 	
 	
 	public NetPacket(int type, int id) {
 		this.type = type;
 		this.id = id;
-		this.sentTime = 0;
-		this.sentTimeFirst = 0;
 	}
 	
 	public NetPacket(int type) {
 		this.type = type;
 		id = -1;
-		sentTime = 0;
-		this.sentTimeFirst = 0;
 	}
 	
 	@Override
@@ -38,31 +31,7 @@ public class NetPacket implements Serializable {
 		if(type == 0) typeName = "MESSAGE";
 		if(type == 1) typeName = "RELIABLE_MESSAGE";
 		if(type == 2) typeName = "ACK";
-		return "type:"+typeName+", id:"+id+", timeSentLast:"+sentTime+", timeSentFirst:"+sentTimeFirst;
-	}
-}
-
-class MessagePacket extends NetPacket {
-	public Message msg;
-	
-	public MessagePacket(int id, Message msg, boolean reliable) {
-		super((reliable ? RELIABLE_MESSAGE : MESSAGE), id);
-		this.msg = msg;
-	}
-
-	public MessagePacket(int id, Message msg) {
-		super(RELIABLE_MESSAGE, id);
-		this.msg = msg;
-	}
-}
-
-class AckPacket extends NetPacket {
-	public int ackId; // Packet to acknowledge
-	
-	public AckPacket(int id, int ackId) {
-		super(ACK, id);
-		this.ackId = ackId;
+		return "type:"+typeName+", id:"+id+", sequence:"+sequence+", ack:"+ack;
 	}
-	
 }
 
@@ -1,80 +1,44 @@
 package client;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.sql.Array;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Map.Entry;
-import java.util.NavigableSet;
-import java.util.Random;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /// Class used for reading data from a socket.
 public class NetRead implements Runnable {
-	public class ReceivedMessage implements Delayed {
-		final public static int MAX_TTL = 5000;
+	public class ReceivedMessage {
+		public InetSocketAddress sender;
 		public InetAddress senderAddr;
 		public int senderPort;
 		public long timeReceived;
 		public Message msg;
 		
-		ReceivedMessage(InetAddress senderAddr, int senderPort, Message msg) {
-			this.senderAddr = senderAddr;
-			this.senderPort = senderPort;
+		ReceivedMessage(InetSocketAddress sender, Message msg) {
+			this.sender = sender;
+			this.senderAddr = sender.getAddress();
+			this.senderPort = sender.getPort();
 			this.msg = msg;
 			this.timeReceived = System.currentTimeMillis();
 		}
-
-		@Override
-		public int compareTo(Delayed d) {
-			return (int) (getDelay(TimeUnit.MILLISECONDS)-d.getDelay(TimeUnit.MILLISECONDS));
-		}
-
-		@Override
-		public long getDelay(TimeUnit u) {
-			return getReadDelay()-(System.currentTimeMillis()-timeReceived);
-		}
 	}
 	
-	private DatagramSocket socket;
+	private Transport transport;
 	private NetWrite netWrite;
-	private DelayQueue<ReceivedMessage> incomingMessages = new DelayQueue<ReceivedMessage>();
+	private ByteBuffer recvBuffer = ByteBuffer.allocateDirect(NetWrite.MAX_PACKET_SIZE); // Every packet is received into this buffer.
+	private ConcurrentLinkedQueue<ReceivedMessage> incomingMessages = new ConcurrentLinkedQueue<ReceivedMessage>();
+	private ArrayList<Message> ordered = new ArrayList<Message>(); // Ordered messages ready to be delivered, reused for every packet.
 	
-	// all missed that is expected to come, based on packet.id. each string ip:port holds Int packet.id and 
-	// long time ms detected missing. the highest packet.id is latest received for that in:port. 
-	private ConcurrentHashMap<String, LinkedBlockingDeque<Integer>> latestReliables = 
-			new ConcurrentHashMap<String, LinkedBlockingDeque<Integer>>();
-	private ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Long>> latestReliablesTimes = 
-			new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, Long>>();
-	private long timestampLatestClared = 0;
 	private volatile boolean quit = false;
-	private long readDelay = 0; // for testing and debugging
 	
 	/// Constructor
-	/// @param socket Socket used to receive data from.
+	/// @param transport Transport used to receive data from.
 	/// @param netWrite The write module linked to this read module.
-	public NetRead(DatagramSocket socket, NetWrite netWrite) {
-		this.socket = socket;
+	public NetRead(Transport transport, NetWrite netWrite) {
+		this.transport = transport;
 		this.netWrite = netWrite;
 	}
 	
@@ -82,171 +46,117 @@ public class NetRead implements Runnable {
 	public void run() {
 		try {
 			while(!quit) {
-				byte[] recvData = new byte[1024];
-				DatagramPacket recvPacket = new DatagramPacket(recvData, 1024);
-				socket.receive(recvPacket);
+				recvBuffer.clear();
+				InetSocketAddress sender = transport.receive(recvBuffer);
+				if(sender == null) {
+					continue;
+				}
+				recvBuffer.flip();
 
-				parsePacket(recvPacket);
+				parsePacket(recvBuffer, sender);
 			}
+		} catch (ClosedChannelException e) {
+			// Transport closed by Session.cleanup, just quit.
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		finally {
-			socket.close();
+			try {
+				transport.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 	
-	/// @return The current read delay
-	/// @see setReadDelay
-	public long getReadDelay() {
-		return readDelay;
-	}
-	
-	/// Sets a "fake" delay for the reading, used for debugging purposes.
-	/// @see getReadDelay
-	public void setReadDelay(long delay) {
-		this.readDelay = delay;
-	}
 	
 	/// @brief Pops a packet from the incoming packet queue
 	public ReceivedMessage popMessage() {
 		return incomingMessages.poll();
 	}
+
+	/// @return Number of received messages waiting to be popped.
+	public int getQueueDepth() {
+		return incomingMessages.size();
+	}
 	
 	/// Stops the read-thread.
 	public void stop() {
 		quit = true;
 	}
 	
-	/// Sends an acknowledgement of the specified packet.
-	private void sendAck(InetAddress destAddr, int destPort, int packetId) {
-		AckPacket packet = new AckPacket(0, packetId);
-		
-		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			
-			oos.writeObject(packet);
-			oos.close();
-			
-			byte[] data = bos.toByteArray();
-			DatagramPacket udpPacket = new DatagramPacket(data, data.length, destAddr, destPort);
-
-			socket.send(udpPacket);
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
-	}
-	
-	/// Parses an incoming UDP packet.
-	private void parsePacket(final DatagramPacket udpPacket) {
+	/// Parses an incoming UDP packet, decoding it directly from the receive buffer.
+	/// @remark Package-private for the benchmarks, otherwise only called by the read-thread.
+	void parsePacket(ByteBuffer buf, InetSocketAddress sender) {
 		NetPacket packet = null;
 		try {
-			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(udpPacket.getData()));
-			
-			packet = (NetPacket) ois.readObject();
-			ois.close();
+			packet = NetCodec.readPacket(buf);
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
+			return;
+		} catch (RuntimeException e) {
+			// Truncated or malformed packet
 			e.printStackTrace();
+			return;
 		}
 		
-		if(packet.type == NetPacket.RELIABLE_MESSAGE) {
-			long timeStamp = System.currentTimeMillis();
-			if(hasBeenProcessed(packet, udpPacket.getAddress().getHostAddress()+":"+udpPacket.getPort(), timeStamp)) {
-				return;
-			}
-			if(timestampLatestClared + 5000 < timeStamp) {
-				cleanReliable(timeStamp-5000);
-				timestampLatestClared = timeStamp;
-			}
+		Connection conn = netWrite.getConnection(sender);
+		conn.stats.packetReceived(buf.limit());
+		boolean duplicate = false;
+		if(packet.type == NetPacket.RELIABLE_MESSAGE && conn.isReliableTooOld(packet.id)) {
+			// A late copy of a packet that have already been acked, see Connection.isReliableTooOld. It's
+			//	dropped without being acked again, as an ack is only right for a packet that have been delivered.
+			conn.stats.duplicatesDropped.incrementAndGet();
+			netWrite.ackPackets(conn, packet.ack, packet.ackBits);
+			return;
 		}
-		
-		if(packet.type == NetPacket.MESSAGE || packet.type == NetPacket.RELIABLE_MESSAGE) {
-			incomingMessages.add(new ReceivedMessage(udpPacket.getAddress(), udpPacket.getPort(), ((MessagePacket)packet).msg));
+		if(packet.type == NetPacket.RELIABLE_MESSAGE && !conn.isReliableReceived(packet.id) && !NetCodec.reserveFragments(buf, conn)) {
+			// No room to reassemble a fragmented message, the packet is dropped without an ack so that the sender resends it later
+			netWrite.ackPackets(conn, packet.ack, packet.ackBits);
+			return;
 		}
-		else if(packet.type == NetPacket.ACK) {
-			if(getReadDelay() > 0) {
-				final int ackId = ((AckPacket)packet).ackId;
-
-				new Timer().schedule(new TimerTask() {          
-				    @Override
-				    public void run() {
-				    	netWrite.ackPacket(ackId);
-				    }
-				}, getReadDelay());
-			} else {
-				netWrite.ackPacket(((AckPacket)packet).ackId);
-			}
-		}
-		
 		if(packet.type == NetPacket.RELIABLE_MESSAGE) {
-			if(getReadDelay() > 0) {
-				final int packetId = packet.id;
-				new Timer().schedule(new TimerTask() {          
-				    @Override
-				    public void run() {
-				    	sendAck(udpPacket.getAddress(), udpPacket.getPort(), packetId);
-				    }
-				}, getReadDelay());
-			} else {
-				sendAck(udpPacket.getAddress(), udpPacket.getPort(), packet.id);
+			// A duplicate is still acked below, the ack for the first copy may have been lost
+			duplicate = conn.reliableReceived(packet.id);
+			if(duplicate) {
+				conn.stats.duplicatesDropped.incrementAndGet();
 			}
 		}
-	}
-	
-	/// @brief checks if this packet already have been processed. 
-	private boolean hasBeenProcessed(NetPacket packet, String id, long timeStamp) {
-		if(latestReliables.containsKey(id)) {
-			LinkedBlockingDeque<Integer> list = latestReliables.get(id);
-			ConcurrentSkipListMap<Integer, Long> timesMap = latestReliablesTimes.get(id);
-			
-			if(list.contains(packet.id)) {
-				return true;
-			}
-			list.addLast(packet.id);
-			timesMap.put(packet.id, packet.sentTimeFirst);
-			latestReliablesTimes.put(id, timesMap);
-			latestReliables.put(id, list);
-			return false;
-		}
-		LinkedBlockingDeque<Integer> list = new LinkedBlockingDeque<Integer>();
-		list.push(packet.id);
-		latestReliables.put(id, list);
+		
+		boolean ackNeeded = (packet.type == NetPacket.RELIABLE_MESSAGE);
+		if(!duplicate && (packet.type == NetPacket.MESSAGE || packet.type == NetPacket.RELIABLE_MESSAGE)) {
+			// Unpack all messages coalesced into this packet
+			while(buf.remaining() >= NetCodec.RECORD_HEADER_SIZE) {
+				Message msg = NetCodec.readRecord(buf, conn);
+				if(msg == null) {
+					continue;
+				}
+				// Entity states needs to be acked for the sender to be able to use them as delta baselines
+				if(msg.type == Message.Type.ENTITY_STATE) {
+					ackNeeded = true;
+				}
 
-		ConcurrentSkipListMap<Integer, Long> timesMap = new ConcurrentSkipListMap<Integer, Long>();
-		timesMap.put(packet.id, packet.sentTimeFirst);
-		latestReliablesTimes.put(id, timesMap);
-		return false;
-	}
-	/// @brief removes old still tracking reliable packets.
-	private void cleanReliable(long timeStamp) {
-		for (Entry<String, LinkedBlockingDeque<Integer>> e : latestReliables.entrySet()) {
-			LinkedBlockingDeque<Integer> list = e.getValue();
-			ConcurrentSkipListMap<Integer, Long> timesMap = latestReliablesTimes.get(e.getKey());
-		    
-			Iterator<Integer> it = list.iterator();
-			while (it.hasNext()) {
-				int id = it.next();
-				if(timesMap.get(id) < timeStamp) {
-					it.remove();
-					timesMap.remove(id);
+				if(msg.channelSequence < 0) {
+					incomingMessages.add(new ReceivedMessage(sender, msg));
 				} else {
-					latestReliables.put(e.getKey(), list);
-					latestReliablesTimes.put(e.getKey(), timesMap);
-					return;
+					// Held back until all earlier messages on the ordered channel have been received
+					conn.orderedReceived(msg, ordered);
+					for(int i = 0; i < ordered.size(); ++i) {
+						incomingMessages.add(new ReceivedMessage(sender, ordered.get(i)));
+					}
+					ordered.clear();
 				}
 			}
-			latestReliables.put(e.getKey(), list);
-			latestReliablesTimes.put(e.getKey(), timesMap);
 		}
+		if(packet.type != NetPacket.ACK) {
+			// Acked by the header of our next packet to the sender
+			netWrite.packetReceived(conn, packet.sequence, ackNeeded);
+		}
+		
+		// Every packet header acknowledges packets we have sent
+		netWrite.ackPackets(conn, packet.ack, packet.ackBits);
 	}
 }
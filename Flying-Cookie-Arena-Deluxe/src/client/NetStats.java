@@ -0,0 +1,88 @@
+package client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/// Traffic counters of a connection, updated by the network layer and read by the MBeans of Peer and Session.
+/// Sizes are what goes on the wire: messages are counted after compression, packets including their header.
+class NetStats {
+	private static final Message.Type[] TYPES = Message.Type.values();
+
+	public final AtomicLong packetsSent = new AtomicLong();
+	public final AtomicLong bytesSent = new AtomicLong();
+	public final AtomicLong packetsReceived = new AtomicLong();
+	public final AtomicLong bytesReceived = new AtomicLong();
+	public final AtomicLongArray messagesSent = new AtomicLongArray(TYPES.length); // Indexed by the ordinal of Message.Type.
+	public final AtomicLongArray messageBytesSent = new AtomicLongArray(TYPES.length);
+	public final AtomicLongArray messagesReceived = new AtomicLongArray(TYPES.length);
+	public final AtomicLongArray messageBytesReceived = new AtomicLongArray(TYPES.length);
+	public final AtomicLong retransmits = new AtomicLong(); // Reliable packets sent again as they weren't acked in time.
+	public final AtomicLong duplicatesDropped = new AtomicLong(); // Reliable packets received more than once.
+	public final AtomicLong messagesExpired = new AtomicLong(); // Unreliable messages dropped while waiting for bandwidth.
+	public final AtomicLong acks = new AtomicLong(); // Reliable packets acked.
+	public final AtomicLong ackLatencyTotal = new AtomicLong(); // Sum of the time in ms from first sending a reliable packet until it was acked.
+	public final AtomicLong unacked = new AtomicLong(); // Reliable packets waiting for an ack.
+
+	void packetSent(int bytes) {
+		packetsSent.incrementAndGet();
+		bytesSent.addAndGet(bytes);
+	}
+
+	void packetReceived(int bytes) {
+		packetsReceived.incrementAndGet();
+		bytesReceived.addAndGet(bytes);
+	}
+
+	void messageSent(Message.Type type, int bytes) {
+		messagesSent.incrementAndGet(type.ordinal());
+		messageBytesSent.addAndGet(type.ordinal(), bytes);
+	}
+
+	void messageReceived(Message.Type type, int bytes) {
+		messagesReceived.incrementAndGet(type.ordinal());
+		messageBytesReceived.addAndGet(type.ordinal(), bytes);
+	}
+
+	/// @param latency Time in ms from the first transmission of the packet until it was acked.
+	void packetAcked(long latency) {
+		acks.incrementAndGet();
+		ackLatencyTotal.addAndGet(latency);
+	}
+
+	/// @return Average time in ms from first sending a reliable packet until it was acked, -1 if nothing have been acked.
+	float getAverageAckLatency() {
+		long count = acks.get();
+		return (count > 0) ? (float)ackLatencyTotal.get() / count : -1.0f;
+	}
+
+	/// @brief Adds all counters of another connection to these, used for totals of a session.
+	void add(NetStats s) {
+		packetsSent.addAndGet(s.packetsSent.get());
+		bytesSent.addAndGet(s.bytesSent.get());
+		packetsReceived.addAndGet(s.packetsReceived.get());
+		bytesReceived.addAndGet(s.bytesReceived.get());
+		for(int i = 0; i < TYPES.length; ++i) {
+			messagesSent.addAndGet(i, s.messagesSent.get(i));
+			messageBytesSent.addAndGet(i, s.messageBytesSent.get(i));
+			messagesReceived.addAndGet(i, s.messagesReceived.get(i));
+			messageBytesReceived.addAndGet(i, s.messageBytesReceived.get(i));
+		}
+		retransmits.addAndGet(s.retransmits.get());
+		duplicatesDropped.addAndGet(s.duplicatesDropped.get());
+		messagesExpired.addAndGet(s.messagesExpired.get());
+		acks.addAndGet(s.acks.get());
+		ackLatencyTotal.addAndGet(s.ackLatencyTotal.get());
+		unacked.addAndGet(s.unacked.get());
+	}
+
+	/// @return The counters as a map from the name of each message type to its value.
+	static Map<String, Long> byType(AtomicLongArray counters) {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		for(int i = 0; i < TYPES.length; ++i) {
+			map.put(TYPES[i].name(), counters.get(i));
+		}
+		return map;
+	}
+}
@@ -1,104 +1,1026 @@
 package client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 public class NetWrite  {
-	
-	/// A outgoing packets, containing the packet and a destination.
-	private class OutgoingPacket {
-		public InetAddress addr;
-		public int port;
-		public NetPacket packet;
-		public SessionCallback callback;
-
-		public OutgoingPacket(InetAddress addr, int port, NetPacket packet) {
-			this.addr = addr;
-			this.port = port;
-			this.packet = packet;
-			this.callback = null;
-		}
-	}
-	
-	private DatagramSocket socket;
-
-	private LinkedBlockingQueue<OutgoingPacket> unackedPackets = new LinkedBlockingQueue<OutgoingPacket>(); // Holds sent packets that haven't been acked yet.
-	private int nextPacketId = 0;
-	
+	static final int MAX_PACKET_SIZE = 65507; // Largest payload of a single UDP datagram.
+	static final int MAX_BUNDLE_SIZE = 1200; // Coalesced packets are kept below this size to stay within common MTUs.
+	// Largest payload of a fragment, sized so that a fragment fills a whole packet.
+	static final int FRAGMENT_SIZE = MAX_BUNDLE_SIZE - NetCodec.HEADER_SIZE - NetCodec.RECORD_HEADER_SIZE - NetCodec.FRAGMENT_HEADER_SIZE;
+	static final int MAX_MESSAGE_SIZE = FragmentAssembler.MAX_FRAGMENTS * FRAGMENT_SIZE; // Largest encoded message that can be sent.
+	static final long ACK_DELAY = 20; // Time in ms to wait for an outgoing packet to carry an ack before sending it standalone.
+	static final int ACK_GAP = 32; // Received packets not yet acked by any header that trigger a standalone ack right away, as the ack bits only cover 32 sequences.
+	static final int DEFAULT_BANDWIDTH = 128 * 1024; // Default outgoing bytes per second for each connection.
+	static final long UNRELIABLE_DEADLINE = 100; // Time in ms an unreliable message may wait for bandwidth before it's dropped.
+	static final long RESEND_RETRY = 10; // Time in ms to postpone a resend when the connection is out of bandwidth.
+	static final int COMPRESSION_THRESHOLD = 128; // Messages smaller than this are never compressed.
+	static final int COMMAND_QUEUE_SIZE = 4096; // Commands waiting for the writer thread, senders wait while it's full.
+	static final int COMMAND_BATCH = 256; // Commands executed by the writer thread before it releases the lock.
+	static final long WRITER_TICK = 2; // Longest time in ms the writer thread sleeps, so that resends and acks are sent in time.
+	static final long STOP_TIMEOUT = 1000; // Time in ms stop waits for the writer thread.
+
+	/// A outgoing reliable packet, containing the encoded packet and a destination.
+	/// The encoded bytes are kept until the packet is acked so that a resend doesn't need to encode the packet again.
+	static class OutgoingPacket {
+		public Connection conn; // Destination
+		public int id;
+		public int sequence; // Sequence of the latest transmission, only this one is considered when acked.
+		public ByteBuffer data; // Encoded packet, from position 0 to limit. Null once the packet have been acked.
+		public long sentTime; // Time when the packet was last sent.
+		public long sentTimeFirst; // Time when the packet was first sent, only kept locally for the ack latency.
+		public long resendTime; // Time when the packet is resent unless acked.
+		public int retries; // Number of times the packet have been resent.
+	}
+
+	/// A encoded message waiting for its connection to have bandwidth to send it, see flush.
+	static class QueuedMessage {
+		public ByteBuffer data; // Encoded message, from position to limit.
+		public boolean reliable;
+		public long deadline; // Unreliable messages still queued at this time are dropped.
+		public long order; // Increased for every queued message.
+		public EntityStateMessage state; // Set for entity states, registered as pending baselines once packed.
+	}
+
+	/// A call waiting to be executed by the writer thread, see start.
+	/// Commands are created once for every slot of the command queue and filled in for every call.
+	static class Command {
+		enum Op {
+			SEND,
+			SEND_ALL,
+			FLUSH,
+			PACKET_RECEIVED,
+			ACK_PACKETS,
+			REMOVE_CONNECTION,
+			SET_BANDWIDTH,
+			SET_REMOTE_COMPRESSION,
+			STOP
+		}
+
+		public Op op;
+		public InetSocketAddress dest;
+		public final ArrayList<InetSocketAddress> dests = new ArrayList<InetSocketAddress>(); // Copy of the destinations of SEND_ALL.
+		public Message msg;
+		public MessageChannel channel;
+		public Connection conn;
+		public int sequence; // Received sequence, or the ack of ACK_PACKETS.
+		public int ackBits;
+		public boolean ackNeeded;
+		public int value; // New setting of SET_BANDWIDTH, or 1 if SET_REMOTE_COMPRESSION enables compression.
+
+		/// @brief Drops the references held by an executed command, so that it doesn't keep messages and connections alive.
+		void clear() {
+			dest = null;
+			dests.clear();
+			msg = null;
+			channel = null;
+			conn = null;
+		}
+	}
+
+	/// Creates the commands of the command queue.
+	private static final MpscRing.Factory<Command> COMMAND_FACTORY = new MpscRing.Factory<Command>() {
+		@Override
+		public Command create() {
+			return new Command();
+		}
+	};
+
+	/// Order messages are sent in when the bandwidth is limited: Reliable gameplay events first, in the order
+	///	they were queued, then unreliable messages with the most recent first, as a fresh state is worth more than a stale one.
+	static final Comparator<QueuedMessage> SEND_ORDER = new Comparator<QueuedMessage>() {
+		@Override
+		public int compare(QueuedMessage a, QueuedMessage b) {
+			if(a.reliable != b.reliable) {
+				return a.reliable ? -1 : 1;
+			}
+			int c = (a.order < b.order) ? -1 : ((a.order > b.order) ? 1 : 0);
+			return a.reliable ? c : -c;
+		}
+	};
+
+	private Transport transport;
+	private volatile int localPeerId = -1; // Written as the sender of every message.
+
+	// The writer thread, null until started. Every command is executed while holding the lock of this object.
+	private volatile MpscRing<Command> commands = null;
+	private volatile Thread writerThread = null;
+	private volatile boolean writerWaiting = false; // The writer thread is parked and needs to be woken up for new commands.
+	private volatile boolean stopped = false; // Commands are no longer accepted.
+
+	// Sent reliable packets ordered by resend time. Acked packets are not removed until they reach the head of the queue.
+	private PriorityQueue<OutgoingPacket> resendQueue = new PriorityQueue<OutgoingPacket>(64, new Comparator<OutgoingPacket>() {
+		@Override
+		public int compare(OutgoingPacket a, OutgoingPacket b) {
+			return (a.resendTime < b.resendTime) ? -1 : ((a.resendTime > b.resendTime) ? 1 : 0);
+		}
+	});
+	private volatile int unackedCount = 0; // Number of packets in resendQueue that haven't been acked yet.
+	private ConcurrentHashMap<InetSocketAddress, Connection> connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+	private NetStats removedStats = new NetStats(); // Sum of the traffic counters of removed connections, part of the totals.
+	private ArrayDeque<OutgoingPacket> freePackets = new ArrayDeque<OutgoingPacket>(); // Recycled OutgoingPacket instances.
+	private ArrayDeque<QueuedMessage> freeQueued = new ArrayDeque<QueuedMessage>(); // Recycled QueuedMessage instances.
+	private long nextQueueOrder = 0;
+	private volatile int defaultBandwidth = DEFAULT_BANDWIDTH;
+	private BufferPool bufferPool = new BufferPool(MAX_BUNDLE_SIZE, 256);
+	private ByteBuffer encodeBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE); // Scratch buffer that all messages are encoded into.
+	private ByteBuffer ackBuffer = ByteBuffer.allocateDirect(NetCodec.HEADER_SIZE); // Reused when sending standalone acks.
+
+	// Compression of large messages, only used for connections where the remote peer announced support in its HELLO.
+	private volatile boolean compressionEnabled = true;
+	private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private byte[] deflateInput = new byte[MAX_MESSAGE_SIZE];
+	private byte[] deflateOutput = new byte[MAX_MESSAGE_SIZE];
+	// Only written while holding the lock, volatile so that the statistics can be read without it.
+	private volatile long messageBytes = 0; // Total size of all queued messages before compression.
+	private volatile long messageBytesCompressed = 0; // Total size of all queued messages after compression.
+
 	/// Constructor
-	/// @param socket The socket which this class should use for writing.
-	public NetWrite(DatagramSocket socket) {
-		this.socket = socket;
+	/// @param transport The transport which this class should use for writing.
+	public NetWrite(Transport transport) {
+		this.transport = transport;
+	}
+
+	/// @brief Starts the writer thread.
+	/// From then on send, flush, packetReceived, ackPackets, removeConnection and the connection settings only queue a command for the writer thread,
+	///	which encodes and sends the messages in the order the commands were queued. The writer thread also
+	///	resends packets and sends acks on its own, update no longer does anything.
+	/// @remark As messages are encoded later, a message must not be modified once it have been sent.
+	public void start() {
+		commands = new MpscRing<Command>(COMMAND_QUEUE_SIZE, COMMAND_FACTORY);
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "NetWrite");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/// @brief Stops the writer thread once it has executed the commands queued before this call, commands queued after are dropped.
+	/// Waits at most STOP_TIMEOUT for the writer thread to finish.
+	public void stop() {
+		if(writerThread == null) {
+			return;
+		}
+		long position = claimCommand();
+		if(position >= 0) {
+			commands.get(position).op = Command.Op.STOP;
+			submit(position);
+		}
+		stopped = true;
+		try {
+			writerThread.join(STOP_TIMEOUT);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/// Updates writer, mainly sending any non-acked packets that requires resending.
+	/// Packets are resent after the retransmission timeout of their connection, doubled for every retry.
+	/// Does nothing once the writer thread is started, as it resends packets on its own.
 	public void update() {
-		
-		long threshold = 500; // 0.5s, TODO: Change this.
-		long currentTime = System.currentTimeMillis();
-		
-		// Check if any packets needs resending
-		for(OutgoingPacket packet : unackedPackets) {
-			if((packet.packet.sentTime + threshold) < currentTime) {
-				sendPacket(packet);
+		if(commands != null) {
+			return;
+		}
+		synchronized(this) {
+			resend(System.currentTimeMillis());
+		}
+	}
+
+	/// Resends the packets that are due, see update.
+	private void resend(long currentTime) {
+		// Resend packets in order of their deadline, until the first one that isn't due yet
+		OutgoingPacket packet;
+		while((packet = resendQueue.peek()) != null && packet.resendTime <= currentTime) {
+			resendQueue.poll();
+			if(packet.data == null) {
+				// Acked while waiting in the queue
+				packet.conn = null;
+				freePackets.addLast(packet);
+				continue;
+			}
+
+			Connection conn = packet.conn;
+			conn.refillBudget(currentTime);
+			if(!conn.hasBudget()) {
+				// Out of bandwidth, try again soon
+				packet.resendTime = currentTime + RESEND_RETRY;
+				resendQueue.add(packet);
+				continue;
 			}
+
+			// Resent as a new transmission, with a new sequence and up to date acks
+			if(conn.sentPackets[packet.sequence & Connection.SENT_WINDOW_MASK] == packet) {
+				conn.sentPackets[packet.sequence & Connection.SENT_WINDOW_MASK] = null;
+			}
+			packet.sequence = conn.localSequence++;
+			conn.sentPackets[packet.sequence & Connection.SENT_WINDOW_MASK] = packet;
+			packet.sentTime = currentTime;
+			packet.retries++;
+			packet.resendTime = currentTime + conn.backoffTimeout(packet.retries);
+			packet.data.position(0);
+			NetCodec.writeHeader(NetPacket.RELIABLE_MESSAGE, packet.id, packet.sequence, conn.remoteSequence, conn.receivedBits, packet.data);
+			conn.ackDeadline = 0;
+			conn.ackedSequence = conn.remoteSequence;
+			conn.spendBudget(packet.data.limit());
+			conn.stats.retransmits.incrementAndGet();
+			sendData(packet.data, conn);
+			resendQueue.add(packet);
 		}
-		
+
 	}
-	
-	/// Sends the specified message to the specified destination.
+
+	/// Queues the specified message for the specified destination.
+	/// Reliable messages are sent on the RELIABLE_ORDERED channel, others on the UNRELIABLE channel.
 	/// @reliable If this is set to true the writer will try to send this packet reliably, meaning it will handle packet losses.
 	///				If set to false the packets will be sent unreliable, used when you don't care that packets may get lost.
-	public void send(InetAddress destAddr, int destPort, Message msg, boolean reliable) {
-		OutgoingPacket packet = new OutgoingPacket(destAddr, destPort, new MessagePacket(nextPacketId++, msg));
-		sendPacket(packet);
-		if(reliable) {
-			unackedPackets.add(packet);
+	public void send(InetSocketAddress dest, Message msg, boolean reliable) {
+		send(dest, msg, (reliable ? MessageChannel.RELIABLE_ORDERED : MessageChannel.UNRELIABLE));
+	}
+
+	/// Queues the specified message for the specified destination.
+	/// Messages are sent on the next flush, as far as the bandwidth of the connection allows.
+	///		Messages to the same destination are coalesced into datagrams. Messages that doesn't fit
+	///		in a single datagram are split into fragments, see FragmentAssembler.
+	/// @param channel Channel that decides if the message is sent reliably and if it's delivered in order.
+	public void send(InetSocketAddress dest, Message msg, MessageChannel channel) {
+		msg.peer = localPeerId;
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.SEND;
+				command.dest = dest;
+				command.msg = msg;
+				command.channel = channel;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			encode(dest, msg, channel);
+		}
+	}
+
+	/// Encodes and queues a message for a single destination, see send.
+	private void encode(InetSocketAddress dest, Message msg, MessageChannel channel) {
+		Connection conn = getConnection(dest);
+		boolean reliable = (channel != MessageChannel.UNRELIABLE);
+		encodeBuffer.clear();
+		try {
+			NetCodec.writeMessage(msg, encodeBuffer, conn);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} catch (BufferOverflowException e) {
+			System.err.println("Message of type " + msg.type + " is larger than " + MAX_MESSAGE_SIZE + " bytes, dropped.");
+			return;
+		}
+		encodeBuffer.flip();
+
+		int compressedSize = usesCompression(conn) ? compress(encodeBuffer) : -1;
+		// The ordered sequence is only consumed once the message is known to be sent
+		int orderedSequence = (channel == MessageChannel.RELIABLE_ORDERED) ? conn.nextOrderedSequence++ : -1;
+		ByteBuffer data = copyMessage(encodeBuffer, compressedSize, orderedSequence);
+		conn.stats.messageSent(msg.type, data.remaining());
+		queue(conn, data, reliable, (msg.type == Message.Type.ENTITY_STATE) ? (EntityStateMessage)msg : null);
+	}
+
+	/// Queues the specified message for several destinations.
+	/// The message is only encoded once, each destination gets a copy of the encoded message
+	///		prefixed by its own ordered sequence if needed. Entity states are encoded once per
+	///		destination as they are delta compressed against what each destination have received.
+	/// @param channel Channel that decides if the message is sent reliably and if it's delivered in order.
+	public void send(Collection<InetSocketAddress> dests, Message msg, MessageChannel channel) {
+		msg.peer = localPeerId;
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.SEND_ALL;
+				for(InetSocketAddress dest : dests) {
+					command.dests.add(dest); // The caller may reuse the collection
+				}
+				command.msg = msg;
+				command.channel = channel;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			encode(dests, msg, channel);
+		}
+	}
+
+	/// Encodes and queues a message for several destinations, see send.
+	private void encode(Collection<InetSocketAddress> dests, Message msg, MessageChannel channel) {
+		if(msg.type == Message.Type.ENTITY_STATE) {
+			for(InetSocketAddress dest : dests) {
+				encode(dest, msg, channel);
+			}
+			return;
+		}
+
+		boolean reliable = (channel != MessageChannel.UNRELIABLE);
+		encodeBuffer.clear();
+		try {
+			NetCodec.writeMessage(msg, encodeBuffer, null); // Only entity states depends on the connection
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		} catch (BufferOverflowException e) {
+			System.err.println("Message of type " + msg.type + " is larger than " + MAX_MESSAGE_SIZE + " bytes, dropped.");
+			return;
+		}
+		encodeBuffer.flip();
+
+		int compressedSize = -2; // Only compressed once, when the first connection using compression is found.
+		for(InetSocketAddress dest : dests) {
+			Connection conn = getConnection(dest);
+			if(usesCompression(conn) && compressedSize == -2) {
+				compressedSize = compress(encodeBuffer);
+			}
+			int orderedSequence = (channel == MessageChannel.RELIABLE_ORDERED) ? conn.nextOrderedSequence++ : -1;
+			ByteBuffer data = copyMessage(encodeBuffer, usesCompression(conn) ? compressedSize : -1, orderedSequence);
+			conn.stats.messageSent(msg.type, data.remaining());
+			queue(conn, data, reliable, null);
+		}
+	}
+
+	/// @return True if messages to the connection should be compressed.
+	private boolean usesCompression(Connection conn) {
+		return compressionEnabled && conn.remoteCompression;
+	}
+
+	/// @brief Compresses an encoded message into deflateOutput.
+	/// @param msg Encoded message, from position to limit. The position is left unchanged.
+	/// @return Size of the compressed message, or -1 if the message is too small or didn't get any smaller.
+	private int compress(ByteBuffer msg) {
+		int size = msg.remaining();
+		if(size < COMPRESSION_THRESHOLD) {
+			return -1;
+		}
+		int position = msg.position();
+		msg.get(deflateInput, 0, size);
+		msg.position(position);
+
+		deflater.reset();
+		deflater.setInput(deflateInput, 0, size);
+		deflater.finish();
+		int compressedSize = deflater.deflate(deflateOutput, 0, deflateOutput.length);
+		if(!deflater.finished() || NetCodec.COMPRESSED_HEADER_SIZE + compressedSize >= size) {
+			return -1;
+		}
+		return compressedSize;
+	}
+
+	/// @brief Copies an encoded message into a buffer of its own, ready to be queued.
+	/// @param msg Encoded message, from position to limit. The position is left unchanged.
+	/// @param compressedSize Size of the compressed message in deflateOutput, or -1 to send the message as is.
+	/// @param orderedSequence Sequence on the RELIABLE_ORDERED channel, or -1 if not sent on that channel.
+	private ByteBuffer copyMessage(ByteBuffer msg, int compressedSize, int orderedSequence) {
+		int size = (compressedSize >= 0) ? NetCodec.COMPRESSED_HEADER_SIZE + compressedSize : msg.remaining();
+		messageBytes += msg.remaining();
+		messageBytesCompressed += size;
+
+		ByteBuffer data = obtainBuffer(size + ((orderedSequence >= 0) ? NetCodec.ORDERED_PREFIX_SIZE : 0));
+		if(orderedSequence >= 0) {
+			NetCodec.writeOrdered(orderedSequence, data);
+		}
+		if(compressedSize >= 0) {
+			NetCodec.writeCompressed(msg.remaining(), deflateOutput, compressedSize, data);
+		} else {
+			int position = msg.position();
+			data.put(msg);
+			msg.position(position);
+		}
+		data.flip();
+		return data;
+	}
+
+	/// @return A cleared buffer with room for at least size bytes, from the pool if the size allows it.
+	private ByteBuffer obtainBuffer(int size) {
+		return (size <= MAX_BUNDLE_SIZE) ? bufferPool.acquire(size) : ByteBuffer.allocate(size);
+	}
+
+	/// Keeps an encoded message until flush decides to send it.
+	/// @param state Set if the message is an entity state.
+	private void queue(Connection conn, ByteBuffer data, boolean reliable, EntityStateMessage state) {
+		QueuedMessage queued = freeQueued.pollLast();
+		if(queued == null) {
+			queued = new QueuedMessage();
+		}
+		queued.data = data;
+		queued.reliable = reliable;
+		queued.deadline = System.currentTimeMillis() + UNRELIABLE_DEADLINE;
+		queued.order = nextQueueOrder++;
+		queued.state = state;
+		conn.sendQueue.add(queued);
+		conn.queuedCount = conn.sendQueue.size();
+	}
+
+	/// Adds a queued message to the pending packets of the connection.
+	private void pack(Connection conn, QueuedMessage queued) {
+		ByteBuffer data = queued.data;
+		boolean reliable = queued.reliable;
+		int size = data.remaining();
+		if(NetCodec.HEADER_SIZE + NetCodec.RECORD_HEADER_SIZE + size <= MAX_BUNDLE_SIZE) {
+			NetCodec.writeRecord(data, bundleFor(conn, reliable, NetCodec.RECORD_HEADER_SIZE + size));
+			conn.spendBudget(NetCodec.RECORD_HEADER_SIZE + size);
+
+			if(queued.state != null) {
+				conn.baselines.addPending(queued.state, reliable);
+			}
+			return;
+		}
+
+		// Too large for a single packet, send it as fragments that fills a packet each.
+		// A fragmented entity state is never used as a delta baseline, as the ack of a single fragment
+		//	doesn't tell if the whole state was received.
+		int group = conn.nextFragmentGroup++;
+		int count = (size + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE;
+		for(int i = 0; i < count; ++i) {
+			int length = Math.min(FRAGMENT_SIZE, data.remaining());
+			ByteBuffer bundle = bundleFor(conn, reliable, NetCodec.RECORD_HEADER_SIZE + NetCodec.FRAGMENT_HEADER_SIZE + length);
+			NetCodec.writeFragment(data, length, group, i, count, bundle);
+			conn.spendBudget(NetCodec.RECORD_HEADER_SIZE + NetCodec.FRAGMENT_HEADER_SIZE + length);
 		}
 	}
-	
-	/// @brief Acknowledges that the specified packet have been received.
-	public void ackPacket(int packetId) {
-		for(OutgoingPacket packet : unackedPackets) {
-			if(packet.packet.id == packetId) {
-				stopTrackReliable(packet);
-				return;
+
+	/// Returns a message that have been sent or dropped, and its buffer, to the pools.
+	private void recycleQueued(QueuedMessage queued) {
+		bufferPool.release(queued.data);
+		queued.data = null;
+		queued.state = null;
+		freeQueued.addLast(queued);
+	}
+
+	/// @return The pending packet for the connection, with room for at least size bytes.
+	///		Flushes the current pending packet first if it's too full.
+	private ByteBuffer bundleFor(Connection conn, boolean reliable, int size) {
+		ByteBuffer bundle = (reliable ? conn.reliableBundle : conn.unreliableBundle);
+		if(bundle != null && bundle.remaining() < size) {
+			// No room left in the pending packet, send it and start a new one
+			flushBundle(conn, reliable);
+			bundle = null;
+		}
+		if(bundle == null) {
+			bundle = bufferPool.acquire(MAX_BUNDLE_SIZE);
+			bundle.limit(MAX_BUNDLE_SIZE);
+			bundle.position(NetCodec.HEADER_SIZE);
+			if(reliable) {
+				conn.reliableBundle = bundle;
+			} else {
+				conn.unreliableBundle = bundle;
 			}
 		}
+		return bundle;
+	}
+
+	/// Sends queued messages, should be called at the end of every frame.
+	/// Each connection sends as much as its bandwidth allows, in the order of SEND_ORDER. Reliable messages
+	///	that doesn't fit waits for the next flush, unreliable messages are dropped when they pass their deadline.
+	/// Acks that have waited more than ACK_DELAY without any outgoing packet to carry them are sent standalone.
+	public void flush() {
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				commands.get(position).op = Command.Op.FLUSH;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			flushQueued(System.currentTimeMillis());
+		}
+	}
+
+	/// Sends the queued messages of all connections, see flush.
+	private void flushQueued(long currentTime) {
+		for(Connection conn : connections.values()) {
+			flushConnection(conn, currentTime);
+		}
 	}
-	
-	/// Stop waiting for acks for the specified packet.
-	private void stopTrackReliable(OutgoingPacket packet) {
-		unackedPackets.remove(packet);
+
+	/// Sends the queued messages of a single connection, see flush.
+	/// While the next message is reliable and the connection has too many unacked reliable packets, see
+	///	Connection.canSendReliable, nothing more is sent to the connection until acks arrive.
+	private void flushConnection(Connection conn, long currentTime) {
+		conn.refillBudget(currentTime);
+		QueuedMessage queued;
+		while(conn.hasBudget() && (queued = conn.sendQueue.peek()) != null) {
+			// Room for every fragment of the message, and the pending packet it may flush
+			if(queued.reliable && !conn.canSendReliable(2 + queued.data.remaining() / FRAGMENT_SIZE)) {
+				break;
+			}
+			conn.sendQueue.poll();
+			conn.queuedCount = conn.sendQueue.size();
+			if(queued.reliable || queued.deadline > currentTime) {
+				pack(conn, queued);
+			} else {
+				conn.stats.messagesExpired.incrementAndGet();
+			}
+			recycleQueued(queued);
+		}
+
+		// Drop anything left that won't be worth sending by the next flush
+		if(!conn.sendQueue.isEmpty()) {
+			Iterator<QueuedMessage> it = conn.sendQueue.iterator();
+			while(it.hasNext()) {
+				queued = it.next();
+				if(!queued.reliable && queued.deadline <= currentTime) {
+					it.remove();
+					recycleQueued(queued);
+					conn.stats.messagesExpired.incrementAndGet();
+				}
+			}
+		}
+
+		if(conn.reliableBundle != null) {
+			flushBundle(conn, true);
+		}
+		if(conn.unreliableBundle != null) {
+			flushBundle(conn, false);
+		}
+		if(conn.ackDeadline != 0 && conn.ackDeadline <= currentTime) {
+			sendAck(conn);
+		}
 	}
-	
-	/// Sends the specified packet.
-	private void sendPacket(OutgoingPacket packet) {
+
+	/// Writes the header of a pending packet and sends it.
+	private void flushBundle(Connection conn, boolean reliable) {
+		ByteBuffer bundle = (reliable ? conn.reliableBundle : conn.unreliableBundle);
+		if(reliable) {
+			conn.reliableBundle = null;
+		} else {
+			conn.unreliableBundle = null;
+		}
+
+		int id = reliable ? conn.nextReliableId++ : 0;
+		if(reliable) {
+			conn.reliableSent(id);
+		}
+		int sequence = conn.localSequence++;
 		long time = System.currentTimeMillis();
-		packet.packet.sentTime = time;
-		if(packet.packet.sentTimeFirst == 0) {
-			packet.packet.sentTimeFirst = time;
+
+		bundle.flip();
+		NetCodec.writeHeader((reliable ? NetPacket.RELIABLE_MESSAGE : NetPacket.MESSAGE), id, sequence,
+				conn.remoteSequence, conn.receivedBits, bundle);
+		conn.ackDeadline = 0; // Pending acks are carried by this packet
+		conn.ackedSequence = conn.remoteSequence;
+		conn.spendBudget(NetCodec.HEADER_SIZE);
+
+		sendData(bundle, conn);
+		conn.baselines.packetSent(sequence, reliable);
+		if(!reliable) {
+			bufferPool.release(bundle);
+			return;
+		}
+
+		// Keep the encoded packet for resending
+		OutgoingPacket packet = obtainPacket();
+		packet.conn = conn;
+		packet.id = id;
+		packet.sequence = sequence;
+		packet.sentTime = time;
+		packet.sentTimeFirst = time;
+		packet.resendTime = time + conn.rto;
+		packet.retries = 0;
+		packet.data = bundle;
+		// Any older packet still in the slot is too old to be acked by now, it stays in the resend queue
+		//	and gets a new slot when it's resent.
+		conn.sentPackets[sequence & Connection.SENT_WINDOW_MASK] = packet;
+		resendQueue.add(packet);
+		unackedCount++;
+		conn.stats.unacked.incrementAndGet();
+	}
+
+	/// @return The connection for the specified address, created if needed.
+	Connection getConnection(InetSocketAddress addr) {
+		Connection conn = connections.get(addr);
+		if(conn == null) {
+			conn = new Connection(addr);
+			conn.bandwidth = defaultBandwidth;
+			Connection existing = connections.putIfAbsent(addr, conn);
+			if(existing != null) {
+				conn = existing;
+			}
+		}
+		return conn;
+	}
+
+	/// @brief Removes the connection to the specified address, e.g. when its peer leaves the session.
+	/// Messages already queued for the connection are sent first, but reliable packets are no longer resent.
+	///	A packet received from the address after this call creates a new connection.
+	public void removeConnection(InetSocketAddress addr) {
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.REMOVE_CONNECTION;
+				command.dest = addr;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			closeConnection(addr);
+		}
+	}
+
+	/// Sends what is queued for a connection and releases everything it holds, see removeConnection.
+	private void closeConnection(InetSocketAddress addr) {
+		Connection conn = connections.remove(addr);
+		if(conn == null) {
+			return;
+		}
+		flushConnection(conn, System.currentTimeMillis());
+
+		// Reliable messages still waiting for bandwidth or acks are dropped
+		QueuedMessage queued;
+		while((queued = conn.sendQueue.poll()) != null) {
+			recycleQueued(queued);
+		}
+		conn.queuedCount = 0;
+		for(OutgoingPacket packet : resendQueue) {
+			if(packet.conn == conn && packet.data != null) {
+				releasePacket(packet); // Recycled once it leaves the resend queue
+			}
+		}
+		Arrays.fill(conn.sentPackets, null);
+		removedStats.add(conn.stats);
+	}
+
+	/// @brief Notes that a packet have been received from the connection, its sequence will be acked
+	///		by the header of the next packet sent to the connection.
+	/// @param ackNeeded If the sender is waiting for an ack, makes sure an ack is sent within ACK_DELAY
+	///		even if there is no other outgoing packet. An ack is sent right away once ACK_GAP packets are waiting for one.
+	public void packetReceived(Connection conn, int sequence, boolean ackNeeded) {
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.PACKET_RECEIVED;
+				command.conn = conn;
+				command.sequence = sequence;
+				command.ackNeeded = ackNeeded;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			notePacketReceived(conn, sequence, ackNeeded);
+		}
+	}
+
+	private void notePacketReceived(Connection conn, int sequence, boolean ackNeeded) {
+		conn.packetReceived(sequence);
+		if(conn.remoteSequence - conn.ackedSequence >= ACK_GAP) {
+			// Older sequences would fall out of the ack bits before any packet carries them
+			sendAck(conn);
+		} else if(ackNeeded && conn.ackDeadline == 0) {
+			conn.ackDeadline = System.currentTimeMillis() + ACK_DELAY;
+		}
+	}
+
+	/// @brief Handles the acks carried by a packet header received from the connection.
+	/// @param ack Latest sequence received by the connection.
+	/// @param ackBits Which of the 32 sequences before ack that have been received.
+	public void ackPackets(Connection conn, int ack, int ackBits) {
+		if(ack < 0) {
+			return;
+		}
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.ACK_PACKETS;
+				command.conn = conn;
+				command.sequence = ack;
+				command.ackBits = ackBits;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			processAcks(conn, ack, ackBits);
+		}
+	}
+
+	private void processAcks(Connection conn, int ack, int ackBits) {
+		long currentTime = System.currentTimeMillis();
+		for(int i = 0; i <= 32; ++i) {
+			if(i != 0 && (ackBits & (1 << (i - 1))) == 0) {
+				continue;
+			}
+			int sequence = ack - i;
+			conn.baselines.packetAcked(sequence);
+
+			// Stop waiting for the reliable packet sent with this sequence, if any
+			int slot = sequence & Connection.SENT_WINDOW_MASK;
+			OutgoingPacket packet = conn.sentPackets[slot];
+			if(packet != null && packet.sequence == sequence) {
+				// Every transmission has its own sequence, so the sample is valid even for resent packets
+				conn.addRttSample(currentTime - packet.sentTime);
+				conn.stats.packetAcked(currentTime - packet.sentTimeFirst);
+				conn.reliableAcked(packet.id);
+				conn.sentPackets[slot] = null;
+				releasePacket(packet);
+			}
+		}
+	}
+
+	/// @brief Sets the bandwidth used for connections created after this call.
+	/// @param bytesPerSecond Outgoing bytes per second for each connection, 0 for no limit.
+	public void setDefaultBandwidth(int bytesPerSecond) {
+		defaultBandwidth = bytesPerSecond;
+	}
+
+	/// @brief Sets the bandwidth of the connection to the specified address.
+	/// @param bytesPerSecond Outgoing bytes per second, 0 for no limit.
+	public void setBandwidth(InetSocketAddress addr, int bytesPerSecond) {
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.SET_BANDWIDTH;
+				command.dest = addr;
+				command.value = bytesPerSecond;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			getConnection(addr).bandwidth = bytesPerSecond;
 		}
+	}
+
+	/// @return The smoothed round trip time to the specified address in ms, or -1 if not measured yet.
+	public long getRoundTripTime(InetSocketAddress addr) {
+		Connection conn = connections.get(addr);
+		float rtt = (conn != null) ? conn.smoothedRtt : -1.0f;
+		return (rtt >= 0.0f) ? (long)rtt : -1;
+	}
+
+	/// @brief Enables or disables compression of large messages.
+	/// Messages are only compressed for peers that have announced support for it, see setRemoteCompression.
+	public void setCompressionEnabled(boolean enabled) {
+		compressionEnabled = enabled;
+	}
+
+	/// @return True if large messages are compressed for peers supporting it.
+	public boolean isCompressionEnabled() {
+		return compressionEnabled;
+	}
+
+	/// @brief Sets whether the peer at the specified address can receive compressed messages.
+	public void setRemoteCompression(InetSocketAddress addr, boolean supported) {
+		if(commands != null) {
+			long position = claimCommand();
+			if(position >= 0) {
+				Command command = commands.get(position);
+				command.op = Command.Op.SET_REMOTE_COMPRESSION;
+				command.dest = addr;
+				command.value = supported ? 1 : 0;
+				submit(position);
+			}
+			return;
+		}
+		synchronized(this) {
+			getConnection(addr).remoteCompression = supported;
+		}
+	}
+
+	/// @return Size of all sent messages after compression divided by their size before compression, 1 if nothing have been sent.
+	public float getCompressionRatio() {
+		long bytes = messageBytes;
+		return (bytes > 0) ? (float)messageBytesCompressed / bytes : 1.0f;
+	}
+
+	/// @return Total size of all sent messages before compression, in bytes.
+	public long getMessageBytes() {
+		return messageBytes;
+	}
+
+	/// @return Total size of all sent messages after compression, in bytes.
+	public long getMessageBytesCompressed() {
+		return messageBytesCompressed;
+	}
+
+	/// @return Number of sent reliable packets that haven't been acked yet.
+	public int getUnackedCount() {
+		return unackedCount;
+	}
+
+	/// @return Number of messages to the specified address waiting for bandwidth, see flush.
+	public int getQueuedCount(InetSocketAddress addr) {
+		Connection conn = connections.get(addr);
+		return (conn != null) ? conn.queuedCount : 0;
+	}
+
+	/// @return Number of messages to all connections waiting for bandwidth.
+	public int getQueuedCount() {
+		int count = 0;
+		for(Connection conn : connections.values()) {
+			count += conn.queuedCount;
+		}
+		return count;
+	}
+
+	/// @return The traffic counters of the connection to the specified address, or null if there is no such connection.
+	NetStats getStats(InetSocketAddress addr) {
+		Connection conn = connections.get(addr);
+		return (conn != null) ? conn.stats : null;
+	}
+
+	/// @brief Forgets the states of an entity in the delta compression of every connection, see EntityBaselines.forget.
+	public void forgetEntity(int entityId) {
+		for(Connection conn : connections.values()) {
+			conn.baselines.forget(entityId);
+		}
+	}
+
+	/// @return The sum of the traffic counters of all connections, including removed ones.
+	NetStats getTotalStats() {
+		NetStats total = new NetStats();
+		total.add(removedStats);
+		for(Connection conn : connections.values()) {
+			total.add(conn.stats);
+		}
+		return total;
+	}
+
+	/// Sends a packet carrying nothing but the acks for the connection.
+	private void sendAck(Connection conn) {
+		ackBuffer.clear();
+		NetCodec.writeHeader(NetPacket.ACK, 0, -1, conn.remoteSequence, conn.receivedBits, ackBuffer);
+		ackBuffer.flip();
+		conn.ackDeadline = 0;
+		conn.ackedSequence = conn.remoteSequence;
+		sendData(ackBuffer, conn);
+	}
+
+	/// @return An unused OutgoingPacket, either recycled or newly allocated.
+	private OutgoingPacket obtainPacket() {
+		OutgoingPacket packet = freePackets.pollLast();
+		return (packet != null) ? packet : new OutgoingPacket();
+	}
+
+	/// Returns the buffer of an acked packet to the pool, the packet itself is recycled once it leaves the resend queue.
+	private void releasePacket(OutgoingPacket packet) {
+		bufferPool.release(packet.data);
+		packet.data = null;
+		unackedCount--;
+		packet.conn.stats.unacked.decrementAndGet();
+	}
+
+	/// @brief Sets the id of the local peer, written as the sender of all messages sent after this call.
+	public void setLocalPeerId(int peerId) {
+		localPeerId = peerId;
+	}
+
+	/// @return Id of the writer thread, -1 if it isn't started. Used to measure the CPU time spent by the thread.
+	public long getWriterThreadId() {
+		Thread thread = writerThread;
+		return (thread != null) ? thread.getId() : -1;
+	}
+
+	/// @return Number of commands waiting for the writer thread, 0 if it isn't started.
+	public int getCommandQueueDepth() {
+		MpscRing<Command> ring = commands;
+		return (ring != null) ? ring.size() : 0;
+	}
+
+	/// Claims a command in the queue of the writer thread, waiting for room if the queue is full as
+	///	dropping a command could lose a reliable message. The command is filled in and then queued with submit.
+	/// @return Position of the command in the queue, or -1 if the writer thread is stopped and the command should be dropped.
+	private long claimCommand() {
+		if(stopped) {
+			return -1;
+		}
+		long position;
+		while((position = commands.claim()) < 0) {
+			if(stopped) {
+				return -1;
+			}
+			Thread.yield();
+		}
+		return position;
+	}
+
+	/// Hands a command filled in after claimCommand to the writer thread.
+	private void submit(long position) {
+		commands.publish(position);
+		if(writerWaiting) {
+			LockSupport.unpark(writerThread);
+		}
+	}
+
+	/// Executes commands until stopped. Between batches of commands, and at least every WRITER_TICK,
+	///	packets that are due are resent and acks that have waited ACK_DELAY are sent.
+	private void writeLoop() {
 		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(packet.packet);
-			oos.close();
-			
-			byte[] data = bos.toByteArray();
-			DatagramPacket udpPacket = new DatagramPacket(data, data.length, packet.addr, packet.port);
-			
-			socket.send(udpPacket);
-			
-			
+			while(true) {
+				synchronized(this) {
+					Command command;
+					for(int i = 0; i < COMMAND_BATCH && (command = commands.peek()) != null; ++i) {
+						if(command.op == Command.Op.STOP) {
+							commands.release();
+							return;
+						}
+						try {
+							execute(command);
+						} catch (RuntimeException e) {
+							// Only this command is lost, like a message that fails to encode when sent directly
+							e.printStackTrace();
+						}
+						command.clear();
+						commands.release();
+					}
+					try {
+						tick(System.currentTimeMillis());
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+
+				if(commands.size() == 0) {
+					// Announce that we sleep before checking again, a command queued after the check sees the flag and wakes us up
+					writerWaiting = true;
+					if(commands.size() == 0) {
+						LockSupport.parkNanos(WRITER_TICK * 1000000L);
+					}
+					writerWaiting = false;
+				}
+			}
+		} finally {
+			// Whatever ends the thread, callers must not wait for room in the queue that will never be made
+			stopped = true;
+		}
+	}
+
+	private void execute(Command command) {
+		switch(command.op) {
+		case SEND:
+			encode(command.dest, command.msg, command.channel);
+			break;
+		case SEND_ALL:
+			encode(command.dests, command.msg, command.channel);
+			break;
+		case FLUSH:
+			flushQueued(System.currentTimeMillis());
+			break;
+		case PACKET_RECEIVED:
+			notePacketReceived(command.conn, command.sequence, command.ackNeeded);
+			break;
+		case ACK_PACKETS:
+			processAcks(command.conn, command.sequence, command.ackBits);
+			break;
+		case REMOVE_CONNECTION:
+			closeConnection(command.dest);
+			break;
+		case SET_BANDWIDTH:
+			getConnection(command.dest).bandwidth = command.value;
+			break;
+		case SET_REMOTE_COMPRESSION:
+			getConnection(command.dest).remoteCompression = (command.value != 0);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/// Resends the packets that are due and sends the acks that have waited ACK_DELAY, done by flush otherwise.
+	private void tick(long currentTime) {
+		resend(currentTime);
+		for(Connection conn : connections.values()) {
+			if(conn.ackDeadline != 0 && conn.ackDeadline <= currentTime) {
+				sendAck(conn);
+			}
+		}
+	}
+
+	/// Sends the specified encoded data, from position 0 to the limit of the buffer.
+	private synchronized void sendData(ByteBuffer data, Connection conn) {
+		try {
+			data.position(0);
+			conn.stats.packetSent(data.limit());
+			transport.send(data, conn.addr);
+
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -1,22 +1,27 @@
 package client;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 public class Peer {
 	private int id;
 	private NetWrite netWrite;
 	private InetAddress addr;
 	private int port;
+	private InetSocketAddress socketAddr; // Cached destination, passed to NetWrite for every send.
 	private String peerName; //TODO this is not used ATM, can be used in a GUI upgrade in the future
 	
-	private long lastHeartbeat; // When did we last communicate with this peer?
+	private volatile long lastHeartbeat; // When did we last communicate with this peer? Also read by its MBean.
 	private long lastPing = -1; // When did we last send a ping to this peer.
+	private ClockSync clockSync = new ClockSync(); // Clock offset and round trip time measured by pings.
+	private int features = 0; // Optional features announced by the peer, see HelloMessage.
 	
 	public Peer(int id, NetWrite netWrite, InetAddress addr, int port) {
 		this.id = id;
 		this.netWrite = netWrite;
 		this.addr = addr;
 		this.port = port;
+		this.socketAddr = new InetSocketAddress(addr, port);
 		
 		lastHeartbeat = System.currentTimeMillis();
 		lastPing = 0;
@@ -31,6 +36,7 @@ public class Peer {
 		this.netWrite = netWrite;
 		this.addr = addr;
 		this.port = port;
+		this.socketAddr = new InetSocketAddress(addr, port);
 		
 		lastHeartbeat = System.currentTimeMillis();
 		lastPing = 0;
@@ -38,7 +44,11 @@ public class Peer {
 	
 	/* send a message (reliable if needed) */
 	public void send(Message msg, boolean reliable) {
-		netWrite.send(addr, port, msg, reliable);
+		netWrite.send(socketAddr, msg, reliable);
+	}
+	/* send a message on the specified channel */
+	public void send(Message msg, MessageChannel channel) {
+		netWrite.send(socketAddr, msg, channel);
 	}
 	/* get the destination internet address */
 	public InetAddress getDestAddr() {
@@ -49,6 +59,18 @@ public class Peer {
 	public int getDestPort() {
 		return port;
 	}
+	/* returns the address and port of the peer */
+	public InetSocketAddress getSocketAddress() {
+		return socketAddr;
+	}
+	/* returns the smoothed round trip time to the peer in ms, -1 if not yet measured */
+	public long getRoundTripTime() {
+		return netWrite.getRoundTripTime(socketAddr);
+	}
+	/* limits the outgoing traffic to the peer, 0 for no limit */
+	public void setBandwidth(int bytesPerSecond) {
+		netWrite.setBandwidth(socketAddr, bytesPerSecond);
+	}
 	/* returns the netwrite object of a peer */
 	public NetWrite getNetWrite() {
 		return netWrite;
@@ -93,6 +115,19 @@ public class Peer {
 	public long getLastPing() {
 		return lastPing;
 	}
+	/* returns the clock offset and round trip time measured by pings to the peer */
+	public ClockSync getClockSync() {
+		return clockSync;
+	}
+	/* returns the optional features announced by the peer, see HelloMessage */
+	public int getFeatures() {
+		return features;
+	}
+	/* sets the optional features announced by the peer, and which of them are used when sending to it */
+	public void setFeatures(int features) {
+		this.features = features;
+		netWrite.setRemoteCompression(socketAddr, (features & HelloMessage.FEATURE_COMPRESSION) != 0);
+	}
 	
 	
 }
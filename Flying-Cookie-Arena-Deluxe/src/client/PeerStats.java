@@ -0,0 +1,53 @@
+package client;
+
+/// MBean reporting the network metrics of a peer.
+class PeerStats extends TrafficStats implements PeerStatsMXBean {
+	private static final NetStats EMPTY = new NetStats(); // Reported until anything have been sent to or received from the peer.
+
+	private Peer peer;
+
+	public PeerStats(Peer peer) {
+		this.peer = peer;
+	}
+
+	@Override
+	protected NetStats stats() {
+		NetStats stats = peer.getNetWrite().getStats(peer.getSocketAddress());
+		return (stats != null) ? stats : EMPTY;
+	}
+
+	@Override
+	public int getId() {
+		return peer.getId();
+	}
+
+	@Override
+	public String getAddress() {
+		return peer.getDestAddr().getHostAddress() + ":" + peer.getDestPort();
+	}
+
+	@Override
+	public long getRoundTripTime() {
+		return peer.getRoundTripTime();
+	}
+
+	@Override
+	public int getQueuedMessages() {
+		return peer.getNetWrite().getQueuedCount(peer.getSocketAddress());
+	}
+
+	@Override
+	public long getTimeSinceLastHeartbeat() {
+		return System.currentTimeMillis() - peer.getLastHeartbeat();
+	}
+
+	@Override
+	public long getClockOffset() {
+		return peer.getClockSync().getOffset();
+	}
+
+	@Override
+	public long getPingRoundTripTime() {
+		return peer.getClockSync().getRoundTripTime();
+	}
+}
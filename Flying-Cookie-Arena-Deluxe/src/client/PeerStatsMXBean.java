@@ -0,0 +1,18 @@
+package client;
+
+/// Network metrics of a single peer, registered by Session as client:type=Peer,session=<local port>,id=<peer id>.
+public interface PeerStatsMXBean extends TrafficStatsMXBean {
+	int getId();
+	/// Address and port of the peer.
+	String getAddress();
+	/// Smoothed round trip time in ms, -1 if not measured yet.
+	long getRoundTripTime();
+	/// Number of messages to the peer waiting for bandwidth.
+	int getQueuedMessages();
+	/// Time in ms since anything was last received from the peer.
+	long getTimeSinceLastHeartbeat();
+	/// Time in ms the clock of the peer is ahead of ours, measured by pings.
+	long getClockOffset();
+	/// Round trip time in ms measured by pings, excluding the time the peer held the ping, -1 if not measured yet.
+	long getPingRoundTripTime();
+}
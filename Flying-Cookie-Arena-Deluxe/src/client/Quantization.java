@@ -0,0 +1,150 @@
+package client;
+
+import java.nio.ByteBuffer;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Fixed-point quantization of transforms sent in ENTITY_STATE messages.
+/// Positions are quantized within the extents of the world and velocities within +-maxVelocity, each
+///	component packed into a long. Rotations use the "smallest three" encoding: the index of the
+///	largest component followed by the three other components, packed into an int.
+/// @remark All peers in a session must use the same settings.
+final class Quantization {
+	private static final int ROTATION_BITS = 10; // Bits per component of a rotation, 2 + 3 * 10 bits fits in an int.
+	private static final float ROTATION_RANGE = 0.70710678f; // The three smallest components are within +-1/sqrt(2).
+
+	private static int positionBits = 16;
+	private static int velocityBits = 12;
+	private static float maxVelocity = 64.0f;
+
+	private Quantization() {}
+
+	/// @brief Changes the precision used for positions and velocities.
+	/// @param positionBits Bits per position component, at most 21.
+	/// @param velocityBits Bits per velocity component, at most 21.
+	/// @param maxVelocity Largest absolute velocity component that can be represented.
+	static void configure(int positionBits, int velocityBits, float maxVelocity) {
+		if(positionBits < 1 || positionBits > 21 || velocityBits < 1 || velocityBits > 21) {
+			throw new IllegalArgumentException("Quantization bits must be within 1 and 21.");
+		}
+		Quantization.positionBits = positionBits;
+		Quantization.velocityBits = velocityBits;
+		Quantization.maxVelocity = maxVelocity;
+	}
+
+	/// @return Number of bytes used by a quantized position.
+	static int positionBytes() {
+		return (positionBits * 3 + 7) / 8;
+	}
+
+	/// @return Number of bytes used by a quantized velocity.
+	static int velocityBytes() {
+		return (velocityBits * 3 + 7) / 8;
+	}
+
+	static long quantizePosition(Vector3f v) {
+		float h = World.WORLD_HALF_SIZE;
+		return pack(quantize(v.x, -h, h, positionBits),
+				quantize(v.y, World.WORLD_MIN_HEIGHT, World.WORLD_MAX_HEIGHT, positionBits),
+				quantize(v.z, -h, h, positionBits), positionBits);
+	}
+
+	static Vector3f dequantizePosition(long q) {
+		float h = World.WORLD_HALF_SIZE;
+		int mask = (1 << positionBits) - 1;
+		return new Vector3f(dequantize((int)(q >>> (positionBits * 2)) & mask, -h, h, positionBits),
+				dequantize((int)(q >>> positionBits) & mask, World.WORLD_MIN_HEIGHT, World.WORLD_MAX_HEIGHT, positionBits),
+				dequantize((int)q & mask, -h, h, positionBits));
+	}
+
+	static long quantizeVelocity(Vector3f v) {
+		return pack(quantize(v.x, -maxVelocity, maxVelocity, velocityBits),
+				quantize(v.y, -maxVelocity, maxVelocity, velocityBits),
+				quantize(v.z, -maxVelocity, maxVelocity, velocityBits), velocityBits);
+	}
+
+	static Vector3f dequantizeVelocity(long q) {
+		int mask = (1 << velocityBits) - 1;
+		return new Vector3f(dequantize((int)(q >>> (velocityBits * 2)) & mask, -maxVelocity, maxVelocity, velocityBits),
+				dequantize((int)(q >>> velocityBits) & mask, -maxVelocity, maxVelocity, velocityBits),
+				dequantize((int)q & mask, -maxVelocity, maxVelocity, velocityBits));
+	}
+
+	/// @brief Encodes a rotation using the smallest three encoding.
+	static int quantizeRotation(Quaternion q) {
+		float[] c = { q.getX(), q.getY(), q.getZ(), q.getW() };
+		float length = (float)Math.sqrt(c[0]*c[0] + c[1]*c[1] + c[2]*c[2] + c[3]*c[3]);
+		if(length == 0.0f) {
+			return 3 << (ROTATION_BITS * 3); // Identity
+		}
+
+		int largest = 0;
+		for(int i = 1; i < 4; ++i) {
+			if(Math.abs(c[i]) > Math.abs(c[largest])) {
+				largest = i;
+			}
+		}
+		// q and -q are the same rotation, make sure the largest component is positive so we don't need its sign.
+		float sign = (c[largest] < 0.0f) ? -1.0f : 1.0f;
+
+		int result = largest;
+		for(int i = 0; i < 4; ++i) {
+			if(i != largest) {
+				result = (result << ROTATION_BITS)
+						| quantize(sign * c[i] / length, -ROTATION_RANGE, ROTATION_RANGE, ROTATION_BITS);
+			}
+		}
+		return result;
+	}
+
+	static Quaternion dequantizeRotation(int q) {
+		int mask = (1 << ROTATION_BITS) - 1;
+		int largest = (q >>> (ROTATION_BITS * 3)) & 0x3;
+
+		float[] c = new float[4];
+		float sum = 0.0f;
+		int shift = ROTATION_BITS * 2;
+		for(int i = 0; i < 4; ++i) {
+			if(i != largest) {
+				c[i] = dequantize((q >>> shift) & mask, -ROTATION_RANGE, ROTATION_RANGE, ROTATION_BITS);
+				sum += c[i] * c[i];
+				shift -= ROTATION_BITS;
+			}
+		}
+		c[largest] = (float)Math.sqrt(Math.max(0.0f, 1.0f - sum));
+		return new Quaternion(c[0], c[1], c[2], c[3]);
+	}
+
+	/// @brief Writes the lowest bytes bytes of the value, most significant first.
+	static void writePacked(long value, int bytes, ByteBuffer buf) {
+		for(int i = bytes - 1; i >= 0; --i) {
+			buf.put((byte)(value >>> (i * 8)));
+		}
+	}
+
+	static long readPacked(int bytes, ByteBuffer buf) {
+		long value = 0;
+		for(int i = 0; i < bytes; ++i) {
+			value = (value << 8) | (buf.get() & 0xFF);
+		}
+		return value;
+	}
+
+	private static long pack(int x, int y, int z, int bits) {
+		return ((long)x << (bits * 2)) | ((long)y << bits) | z;
+	}
+
+	/// @return The value mapped from [min, max] to an integer in [0, 2^bits - 1], clamped.
+	private static int quantize(float value, float min, float max, int bits) {
+		int steps = (1 << bits) - 1;
+		float t = (value - min) / (max - min);
+		if(!(t > 0.0f)) return 0; // Also handles NaN
+		if(t >= 1.0f) return steps;
+		return Math.round(t * steps);
+	}
+
+	private static float dequantize(int q, float min, float max, int bits) {
+		return min + (max - min) * ((float)q / (float)((1 << bits) - 1));
+	}
+}
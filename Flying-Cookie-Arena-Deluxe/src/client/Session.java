@@ -3,16 +3,20 @@ package client;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import javax.management.ObjectName;
+
 import client.LobbyServerConnection.STATUS;
 
 public class Session {
@@ -25,7 +29,8 @@ public class Session {
 		CONNECTED
 	};
 
-	private DatagramSocket socket = null;
+	private Transport.Factory transportFactory = UdpTransport.FACTORY;
+	private Transport transport = null;
 
 	private State state = State.DISCONNECTED;
 	private NetRead netRead = null;
@@ -33,13 +38,19 @@ public class Session {
 	private int myPeerId = -1;
 	private int masterPeerId = -1;
 	private int nextPeerId = 0;
-	private long readDelay = 0;
+	// Emulated network conditions, for testing and debugging. Used for sessions created after they are set.
+	private LinkEmulator.Conditions emulatedOutgoing = null;
+	private LinkEmulator.Conditions emulatedIncoming = null;
+	private long emulationSeed = 0;
+	private LinkEmulator linkEmulator = null;
 	private long connectionTimeoutTimestamp = 0;
+	private String mbeanSession = null; // Identifies the session in the names of its MBeans, the local port.
 
 	private SessionCallback sessionCallback;
 
 	/* holds all peers in the session and maps the peer to an Integer */
 	private Map<Integer, Peer> peers = new HashMap<Integer, Peer>();
+	private ArrayList<InetSocketAddress> broadcastAddrs = new ArrayList<InetSocketAddress>(); // Reused by sendToAll.
 	private Map<Message.Type, MessageEffect> messageEffects = new EnumMap<Message.Type, MessageEffect>(
 			Message.Type.class);
 	
@@ -47,13 +58,10 @@ public class Session {
 	/// @brief Creates a new empty session.
 	public void createSession(int myPort, SessionCallback c) throws Exception {
 		if (state == State.DISCONNECTED) {
-			socket = new DatagramSocket(myPort);
-			netWrite = new NetWrite(socket);
-			netRead = new NetRead(socket, netWrite);
-			netRead.setReadDelay(readDelay);
-			new Thread(netRead).start();
+			openConnection(myPort);
 
 			myPeerId = 0;
+			netWrite.setLocalPeerId(myPeerId);
 			masterPeerId = 0;
 			nextPeerId = myPeerId + 1;
 
@@ -88,24 +96,19 @@ public class Session {
 		}
 		
 		if (state == State.DISCONNECTED) {
-			socket = new DatagramSocket();
-			netWrite = new NetWrite(socket);
-			netRead = new NetRead(socket, netWrite);
-			netRead.setReadDelay(readDelay);
-			new Thread(netRead).start();
+			openConnection(0);
 
 			state = State.AWAITING_CONNECTION;
 
 			// We just assume that the master has the id 0, we can change that
 			// later.
 			Peer masterPeer = new Peer(nextPeerId, netWrite, destAddr, destPort);
-			peers.put(nextPeerId, masterPeer);
+			addPeer(masterPeer);
 			masterPeerId = nextPeerId;
 			++nextPeerId;
 
 			// Send hello to master
-			HelloMessage msg = new HelloMessage();
-			masterPeer.send(msg, true);
+			masterPeer.send(createHello(), true);
 			
 
 		} else {
@@ -127,21 +130,101 @@ public class Session {
 	}
 	
 
-	/// @brief for debuging and testing, sets read delay in ms on alla packets
-	/// read from socket.
-	public void setReadDelay(long delay) {
-		readDelay = delay;
-		if (state != State.DISCONNECTED) {
-			netRead.setReadDelay(delay);
+	/// @brief For debugging and testing, emulates a bad network link for all packets sent and received.
+	/// Applies to the current session and sessions created later.
+	/// @param outgoing Conditions for sent packets, null for a perfect link.
+	/// @param incoming Conditions for received packets, null for a perfect link.
+	/// @param seed Seed of the random decisions of the emulator, the same seed gives reproducible runs.
+	/// @remark The emulator is only inserted when a session is created, setting conditions on a
+	///		session that was created without emulation has no effect until the next session.
+	public void setLinkEmulation(LinkEmulator.Conditions outgoing, LinkEmulator.Conditions incoming, long seed) {
+		emulatedOutgoing = outgoing;
+		emulatedIncoming = incoming;
+		emulationSeed = seed;
+		if (linkEmulator != null) {
+			linkEmulator.setConditions(outgoing, incoming);
+		}
+	}
+
+	/// @brief Sets the factory used to open the transport of sessions created after this call.
+	/// Defaults to UDP, a LoopbackTransport.Network lets several sessions run within the same process.
+	public void setTransportFactory(Transport.Factory factory) {
+		transportFactory = factory;
+	}
+
+	/// @return The address other peers reach this session at, or null if disconnected.
+	public InetSocketAddress getLocalAddress() {
+		return (transport != null) ? transport.getLocalAddress() : null;
+	}
+
+	/// @brief Opens the transport, sets up the read and write modules and starts the read-thread.
+	/// @param port Local port, 0 for any free port.
+	private void openConnection(int port) throws IOException {
+		transport = transportFactory.open(port);
+		if (emulatedOutgoing != null || emulatedIncoming != null) {
+			linkEmulator = new LinkEmulator(transport, emulationSeed, emulatedOutgoing, emulatedIncoming);
+			linkEmulator.start();
+			transport = linkEmulator;
+		}
+		netWrite = new NetWrite(transport);
+		netWrite.start();
+		netRead = new NetRead(transport, netWrite);
+		new Thread(netRead).start();
+
+		mbeanSession = Integer.toString(transport.getLocalAddress().getPort());
+		registerMBean(new SessionStats(this, netWrite, netRead), "client:type=Session,name=" + mbeanSession);
+	}
+
+	/// @brief Adds a peer to the session and registers its MBean.
+	private void addPeer(Peer peer) {
+		peers.put(peer.getId(), peer);
+		registerMBean(new PeerStats(peer), peerMBeanName(peer.getId()));
+	}
+
+	/// @brief Removes a peer from the session, unregisters its MBean and closes its connection.
+	private void removePeer(int id) {
+		Peer peer = peers.remove(id);
+		if (peer != null) {
+			unregisterMBean(peerMBeanName(id));
+			netWrite.removeConnection(peer.getSocketAddress());
+		}
+	}
+
+	private String peerMBeanName(int id) {
+		return "client:type=Peer,session=" + mbeanSession + ",id=" + id;
+	}
+
+	/// @brief Registers an MBean with the platform MBean server, making it visible to JMX clients like JConsole.
+	private void registerMBean(Object mbean, String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void unregisterMBean(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
 	}
 
 	/// @brief Sends a message to all peers.
+	/// The message is only encoded once, regardless of the number of peers.
 	public void sendToAll(Message msg, boolean reliable) throws Exception {
+		sendToAll(msg, (reliable ? MessageChannel.RELIABLE_ORDERED : MessageChannel.UNRELIABLE));
+	}
+
+	/// @brief Sends a message to all peers on the specified channel.
+	public void sendToAll(Message msg, MessageChannel channel) throws Exception {
 		if (state == State.CONNECTED) {
+			broadcastAddrs.clear();
 			for (Peer peer : peers.values()) {
-				peer.send(msg, true);
+				broadcastAddrs.add(peer.getSocketAddress());
 			}
+			netWrite.send(broadcastAddrs, msg, channel);
 		} else {
 			throw new Exception("Session not initialized.");
 		}
@@ -157,6 +240,21 @@ public class Session {
 		}
 	}
 
+	/// @brief Forgets what have been sent and received about an entity that have been destroyed or changed owner.
+	public void forgetEntity(int entityId) {
+		if (state != State.DISCONNECTED) {
+			netWrite.forgetEntity(entityId);
+		}
+	}
+
+	/// Sends all messages queued since the last flush, coalesced into as few packets as possible.
+	/// Should be called at the end of every frame, after all messages for the frame have been sent.
+	public void flush() {
+		if (state != State.DISCONNECTED) {
+			netWrite.flush();
+		}
+	}
+
 	/// Updates the session, should be called once every frame.
 	public void update() {
 		if (state != State.DISCONNECTED) {
@@ -173,6 +271,8 @@ public class Session {
 						sessionCallback.onPeerDisconnect(p.getId(), "Peer " + p.getId() + "  timed out");
 					}
 					it.remove();
+					unregisterMBean(peerMBeanName(p.getId()));
+					netWrite.removeConnection(p.getSocketAddress());
 					
 					// Notify all the connected peers that the peer timed out
 					try {
@@ -182,12 +282,10 @@ public class Session {
 						e.printStackTrace();
 					}
 				}
-				else if((currentTime - p.getLastHeartbeat()) > 5000) { // No activity for 5 seconds, ping to make sure peer is alive
-					// Make sure not to spam a ping every frame
-					if((currentTime - p.getLastPing()) > 5000) {
-						sendPing(p.getId());
-						p.setLastPing(currentTime);
-					}
+				else if(state == State.CONNECTED && (currentTime - p.getLastPing()) > p.getClockSync().getPingInterval()) {
+					// Regular pings keeps the clock of the peer synchronized, and makes sure the peer is alive
+					sendPing(p.getId());
+					p.setLastPing(currentTime);
 				}
 				
 			}
@@ -199,6 +297,23 @@ public class Session {
 				connectionTimeoutTimestamp = 0;
 			}
 		}
+		flush();
+	}
+
+	/// @brief Converts a time on the clock of the specified peer to our clock, e.g. EntityStateMessage.timestamp.
+	/// @return The local time, or -1 if the peer is unknown or its clock isn't synchronized yet.
+	public long toLocalTime(int peerId, long remoteTime) {
+		Peer peer = peers.get(peerId);
+		if (peer == null || !peer.getClockSync().isSynchronized()) {
+			return -1;
+		}
+		return peer.getClockSync().toLocalTime(remoteTime);
+	}
+
+	/// @return Id of the thread that encodes and sends the messages of the session, -1 if not connected.
+	public long getWriterThreadId() {
+		NetWrite w = netWrite;
+		return (w != null) ? w.getWriterThreadId() : -1;
 	}
 
 	/// @return My peer id, -1 if the id is invalid (Not connected).
@@ -206,6 +321,11 @@ public class Session {
 		return myPeerId;
 	}
 
+	/// @return All peers in the session (Not including yourself).
+	public Collection<Peer> getPeers() {
+		return peers.values();
+	}
+
 	/// @return Returns the number of peers available in the session (Not including yourself).
 	public int getPeerCount() {
 		return peers.size();
@@ -235,6 +355,15 @@ public class Session {
 		messageEffects.remove(type);
 	}
 
+	/// @return A hello message announcing the features supported by the local peer.
+	private HelloMessage createHello() {
+		HelloMessage msg = new HelloMessage();
+		if (netWrite.isCompressionEnabled()) {
+			msg.features |= HelloMessage.FEATURE_COMPRESSION;
+		}
+		return msg;
+	}
+
 	/// @brief Processes incoming packets.
 	private void processIncoming() {
 		if (state != State.DISCONNECTED) {
@@ -264,7 +393,10 @@ public class Session {
 								return;
 							}
 						}
+						peer.setFeatures(helloMsg.features);
+						// The id answers the hello, it tells the new peer which features we support
 						PeerIdMessage idMsg = new PeerIdMessage(peer.getId());
+						idMsg.features = createHello().features;
 						peer.send(idMsg, true);
 
 						// Send peer list
@@ -272,14 +404,14 @@ public class Session {
 
 						for (Peer p : peers.values()) {
 							listMsg.peers.add(listMsg.new RawPeer(p.getId(), p
-									.getDestAddr(), p.getDestPort()));
+									.getDestAddr(), p.getDestPort(), p.getFeatures()));
 						}
 						// We also addd ourself (the master peer) to the end of the list.
-						listMsg.peers.add(listMsg.new RawPeer(getMyPeerId(), null, -1));
+						listMsg.peers.add(listMsg.new RawPeer(getMyPeerId(), null, -1, idMsg.features));
 
 						peer.send(listMsg, true);
 
-						peers.put(peer.getId(), peer);
+						addPeer(peer);
 						
 						// inject the peerId to the message for its messageEffect
 						helloMsg.peer = peer.getId();
@@ -287,26 +419,32 @@ public class Session {
 						// Otherwise we just put the new peer into our peer list
 						if (helloMsg.peer >= 0
 								&& !peers.containsKey(helloMsg.peer)) {
-							peers.put(helloMsg.peer, new Peer(helloMsg.peer,
+							addPeer(new Peer(helloMsg.peer,
 									netWrite, recvMsg.senderAddr,
 									recvMsg.senderPort));
 						}
+						if (peers.containsKey(helloMsg.peer)) {
+							peers.get(helloMsg.peer).setFeatures(helloMsg.features);
+						}
 					}
 
 				} else if (recvMsg.msg.type == Message.Type.PEER_ID) {
 					// Update my peer id
 					myPeerId = ((PeerIdMessage) recvMsg.msg).peerId;
+					netWrite.setLocalPeerId(myPeerId);
+					peers.get(masterPeerId).setFeatures(((PeerIdMessage) recvMsg.msg).features);
 
 					System.out.println("Peer ID assigned : " + myPeerId);
 
 					// Update master peer id if needed
 					if (masterPeerId != recvMsg.msg.peer && !isMaster()) {
 						System.out.println("Master peer : (local: " + masterPeerId + ", global: " + recvMsg.msg.peer + ")");
-						Peer masterPeer = peers.get(masterPeerId);
-						peers.remove(masterPeerId);
+						// Only the id changes, the connection to the master is kept
+						Peer masterPeer = peers.remove(masterPeerId);
+						unregisterMBean(peerMBeanName(masterPeerId));
 
 						masterPeer.setId(recvMsg.msg.peer);
-						peers.put(masterPeer.getId(), masterPeer);
+						addPeer(masterPeer);
 
 						masterPeerId = recvMsg.msg.peer;
 					}
@@ -322,14 +460,15 @@ public class Session {
 						
 						Peer newPeer = new Peer(p.peerId, netWrite, p.addr,
 								p.port);
-						peers.put(p.peerId, newPeer);
+						newPeer.setFeatures(p.features);
+						addPeer(newPeer);
 
 						System.out.println("Peer: " + p.addr.getHostAddress()
 								+ ":" + p.port);
 
 						// Send hello to new peer
 						try {
-							sendToPeer(new HelloMessage(), p.peerId, true);
+							sendToPeer(createHello(), p.peerId, true);
 						} catch (Exception e) {
 							// TODO Auto-generated catch block
 							e.printStackTrace();
@@ -340,17 +479,21 @@ public class Session {
 					}
 					
 				} else if (recvMsg.msg.type == Message.Type.PING) {
-					System.out.println("PING from peer " + recvMsg.msg.peer);
-					
-					// Return a pong message
-					try {
-						sendToPeer(new PongMessage(), recvMsg.msg.peer, false);
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+					// Return a pong message, echoing the time of the ping
+					if (peers.containsKey(recvMsg.msg.peer)) {
+						try {
+							sendToPeer(new PongMessage((PingMessage) recvMsg.msg, recvMsg.timeReceived), recvMsg.msg.peer, false);
+						} catch (Exception e) {
+							// TODO Auto-generated catch block
+							e.printStackTrace();
+						}
 					}
 				} else if (recvMsg.msg.type == Message.Type.PONG) {
-					System.out.println("PONG from peer " + recvMsg.msg.peer);
+					PongMessage pong = (PongMessage) recvMsg.msg;
+					Peer peer = peers.get(pong.peer);
+					if (peer != null) {
+						peer.getClockSync().addSample(pong.pingSendTime, pong.pingReceiveTime, pong.sendTime, recvMsg.timeReceived);
+					}
 				} else if (recvMsg.msg.type == Message.Type.PEER_TIMED_OUT) {
 					// A peer desynced from the network so we will need to kick him
 					
@@ -378,7 +521,7 @@ public class Session {
 						}
 						
 						// We then remove him from our peers
-						peers.remove(msg.timedOutPeerId);
+						removePeer(msg.timedOutPeerId);
 						
 					}
 					
@@ -408,7 +551,6 @@ public class Session {
 	
 	/// Sends a ping to the specified peer.
 	private void sendPing(int peer) { 
-		System.out.println("PING to peer " + peer);
 		try {
 			sendToPeer(new PingMessage(), peer, false);
 		} catch (Exception e) {
@@ -419,10 +561,22 @@ public class Session {
 
 	/// Clean up, shutting down the session.
 	private void cleanup() {
-		socket.close();
+		netWrite.flush(); // Make sure any queued goodbye messages are sent.
+		netWrite.stop();
 		netRead.stop();
+		try {
+			transport.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		transport = null;
+		linkEmulator = null;
 		netRead = null;
 		netWrite = null;
+		for (int id : peers.keySet()) {
+			unregisterMBean(peerMBeanName(id));
+		}
+		unregisterMBean("client:type=Session,name=" + mbeanSession);
 		peers.clear();
 		myPeerId = -1;
 			
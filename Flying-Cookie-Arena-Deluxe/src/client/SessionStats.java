@@ -0,0 +1,60 @@
+package client;
+
+/// MBean reporting the network metrics of a session.
+/// Keeps its own references to the read and write modules, as the session drops them when it's cleaned up.
+class SessionStats extends TrafficStats implements SessionStatsMXBean {
+	private Session session;
+	private NetWrite netWrite;
+	private NetRead netRead;
+
+	public SessionStats(Session session, NetWrite netWrite, NetRead netRead) {
+		this.session = session;
+		this.netWrite = netWrite;
+		this.netRead = netRead;
+	}
+
+	@Override
+	protected NetStats stats() {
+		return netWrite.getTotalStats();
+	}
+
+	@Override
+	public String getState() {
+		return session.getState().name();
+	}
+
+	@Override
+	public int getMyPeerId() {
+		return session.getMyPeerId();
+	}
+
+	@Override
+	public boolean isMaster() {
+		return session.isMaster();
+	}
+
+	@Override
+	public int getPeerCount() {
+		return session.getPeerCount();
+	}
+
+	@Override
+	public int getIncomingQueueDepth() {
+		return netRead.getQueueDepth();
+	}
+
+	@Override
+	public int getQueuedMessages() {
+		return netWrite.getQueuedCount();
+	}
+
+	@Override
+	public int getWriterQueueDepth() {
+		return netWrite.getCommandQueueDepth();
+	}
+
+	@Override
+	public float getCompressionRatio() {
+		return netWrite.getCompressionRatio();
+	}
+}
@@ -0,0 +1,18 @@
+package client;
+
+/// Network metrics of a whole session, registered by Session as client:type=Session,name=<local port>.
+/// The traffic metrics are the sums over all connections of the session.
+public interface SessionStatsMXBean extends TrafficStatsMXBean {
+	String getState();
+	int getMyPeerId();
+	boolean isMaster();
+	int getPeerCount();
+	/// Number of received messages waiting to be processed by the next update.
+	int getIncomingQueueDepth();
+	/// Number of messages to all peers waiting for bandwidth.
+	int getQueuedMessages();
+	/// Number of sends and other calls waiting for the writer thread.
+	int getWriterQueueDepth();
+	/// Size of all sent messages after compression divided by their size before compression.
+	float getCompressionRatio();
+}
@@ -0,0 +1,74 @@
+package client;
+
+import java.util.Map;
+
+/// Implements the traffic metrics on top of the NetStats returned by stats.
+abstract class TrafficStats implements TrafficStatsMXBean {
+	/// @return The counters to report, read once for every attribute.
+	protected abstract NetStats stats();
+
+	@Override
+	public long getPacketsSent() {
+		return stats().packetsSent.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return stats().bytesSent.get();
+	}
+
+	@Override
+	public long getPacketsReceived() {
+		return stats().packetsReceived.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return stats().bytesReceived.get();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesSent() {
+		return NetStats.byType(stats().messagesSent);
+	}
+
+	@Override
+	public Map<String, Long> getMessageBytesSent() {
+		return NetStats.byType(stats().messageBytesSent);
+	}
+
+	@Override
+	public Map<String, Long> getMessagesReceived() {
+		return NetStats.byType(stats().messagesReceived);
+	}
+
+	@Override
+	public Map<String, Long> getMessageBytesReceived() {
+		return NetStats.byType(stats().messageBytesReceived);
+	}
+
+	@Override
+	public long getRetransmits() {
+		return stats().retransmits.get();
+	}
+
+	@Override
+	public long getDuplicatesDropped() {
+		return stats().duplicatesDropped.get();
+	}
+
+	@Override
+	public long getMessagesExpired() {
+		return stats().messagesExpired.get();
+	}
+
+	@Override
+	public float getAverageAckLatency() {
+		return stats().getAverageAckLatency();
+	}
+
+	@Override
+	public long getUnackedPackets() {
+		return stats().unacked.get();
+	}
+}
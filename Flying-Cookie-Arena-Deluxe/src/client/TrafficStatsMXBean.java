@@ -0,0 +1,30 @@
+package client;
+
+import java.util.Map;
+
+/// Traffic metrics shared by the MBeans of Peer and Session.
+/// Counts are totals since the connection was created, sizes are in bytes as sent on the wire and times are in ms.
+public interface TrafficStatsMXBean {
+	long getPacketsSent();
+	long getBytesSent();
+	long getPacketsReceived();
+	long getBytesReceived();
+	/// Number of messages sent, by message type.
+	Map<String, Long> getMessagesSent();
+	/// Bytes of messages sent, by message type. Excludes packet and record headers.
+	Map<String, Long> getMessageBytesSent();
+	/// Number of messages received, by message type.
+	Map<String, Long> getMessagesReceived();
+	/// Bytes of messages received, by message type. Excludes packet and record headers.
+	Map<String, Long> getMessageBytesReceived();
+	/// Number of reliable packets sent again as they weren't acked in time.
+	long getRetransmits();
+	/// Number of reliable packets received more than once and dropped.
+	long getDuplicatesDropped();
+	/// Number of unreliable messages dropped as they waited too long for bandwidth.
+	long getMessagesExpired();
+	/// Average time from the first transmission of a reliable packet until it was acked, -1 if nothing have been acked.
+	float getAverageAckLatency();
+	/// Number of sent reliable packets waiting for an ack.
+	long getUnackedPackets();
+}
@@ -0,0 +1,32 @@
+package client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/// Sends and receives datagrams for NetWrite and NetRead.
+/// Like UDP, a transport may lose, duplicate and reorder packets, everything above it is handled by the network layer.
+///	Once closed, send and receive throws ClosedChannelException.
+public interface Transport {
+	/// Opens transports, used by Session so that the same session code can run on different transports.
+	public interface Factory {
+		/// @brief Opens a transport bound to the specified port.
+		/// @param port Local port, 0 for any free port.
+		public Transport open(int port) throws IOException;
+	}
+
+	/// @brief Sends a packet.
+	/// @param data Encoded packet, from position to limit.
+	public void send(ByteBuffer data, InetSocketAddress dest) throws IOException;
+
+	/// @brief Receives the next packet into the buffer.
+	/// Blocks until a packet is received, but may return early without a packet to let the caller check if it should quit.
+	/// @return The sender of the packet, or null if no packet was received.
+	public InetSocketAddress receive(ByteBuffer buf) throws IOException;
+
+	/// @return The address other transports sends packets to when sending to this transport.
+	public InetSocketAddress getLocalAddress();
+
+	/// @brief Closes the transport, any thread blocking in receive is released.
+	public void close() throws IOException;
+}
@@ -0,0 +1,83 @@
+package client;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Enumeration;
+
+/// Transport sending packets as UDP datagrams.
+public class UdpTransport implements Transport {
+	/// Opens UDP transports on all local addresses.
+	public static final Transport.Factory FACTORY = new Transport.Factory() {
+		@Override
+		public Transport open(int port) throws IOException {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(port));
+			return new UdpTransport(channel);
+		}
+	};
+
+	private DatagramChannel channel;
+
+	/// Constructor
+	/// @param channel A bound channel, in blocking mode.
+	public UdpTransport(DatagramChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void send(ByteBuffer data, InetSocketAddress dest) throws IOException {
+		channel.send(data, dest);
+	}
+
+	@Override
+	public InetSocketAddress receive(ByteBuffer buf) throws IOException {
+		return (InetSocketAddress) channel.receive(buf);
+	}
+
+	/// @return The bound address, or if bound to all addresses, the first IPv4 address of a network interface that is up.
+	///		Falls back to the loopback address if there is no such interface.
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		InetSocketAddress bound = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+		if(bound == null || !bound.getAddress().isAnyLocalAddress()) {
+			return bound;
+		}
+		InetAddress addr = routableAddress();
+		return (addr != null) ? new InetSocketAddress(addr, bound.getPort()) : bound;
+	}
+
+	/// @return An address of this host that other hosts can reach, the loopback address if no network
+	///		interface is up, or null if the interfaces can't be listed.
+	private static InetAddress routableAddress() {
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while(interfaces != null && interfaces.hasMoreElements()) {
+				NetworkInterface ni = interfaces.nextElement();
+				if(!ni.isUp() || ni.isLoopback()) {
+					continue;
+				}
+				Enumeration<InetAddress> addrs = ni.getInetAddresses();
+				while(addrs.hasMoreElements()) {
+					InetAddress addr = addrs.nextElement();
+					if(addr instanceof Inet4Address) {
+						return addr;
+					}
+				}
+			}
+			return InetAddress.getByName(null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -1,6 +1,10 @@
 package client;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
@@ -33,6 +37,12 @@ public class World {
 	private Node rootNode; // Root scene node for this world and its content
 	private TerrainQuad terrain;
 	private int nextEntityId = 0;
+	
+	// Extents of the world, entity positions sent over the network are quantized within these.
+	public static final int TERRAIN_SIZE = 1025; // Terrain is TERRAIN_SIZE x TERRAIN_SIZE units, centered at the origin.
+	public static final float WORLD_HALF_SIZE = (TERRAIN_SIZE - 1) / 2.0f;
+	public static final float WORLD_MIN_HEIGHT = -64.0f;
+	public static final float WORLD_MAX_HEIGHT = 448.0f;
 	
 	// Our different collision groups for jmonkey
 	public static final int COLLISION_GROUP_CRATE = PhysicsCollisionObject.COLLISION_GROUP_01;
@@ -45,6 +55,37 @@ public class World {
 	// List of all crates in the world
 	private ArrayList<Entity> entities = new ArrayList<Entity>();
 
+	public static final float RELEVANCE_RADIUS = 200.0f; // Entities further away than this from a peer's character are not sent to that peer.
+	// Priority accumulation of entity states, see broadcastWorldState
+	static final float SEND_THRESHOLD = 1.0f; // Priority an entity needs to be sent, an unchanged entity nearby reaches this in about a second.
+	private static final float DISTANCE_SCALE = 50.0f; // Distance at which the priority grows half as fast as right next to the peer.
+	private static final float CHANGE_WEIGHT = 4.0f; // Priority added per unit moved since the state was last sent to the peer.
+	private static final float ENTER_PRIORITY = 1000.0f; // Priority given to entities entering the area of interest of a peer.
+	private static final int STATE_SIZE_ESTIMATE = 48; // Estimated bytes of an encoded state, used to fit the states sent each tick in one packet.
+
+	/// What we have sent to a peer about one of our entities.
+	private static class EntityInterest {
+		float priority = ENTER_PRIORITY; // Grows every tick until the entity is sent.
+		Vector3f lastSentPosition = null;
+		Entity entity; // The entity, set every time it becomes a candidate for sending.
+	}
+	/// Highest priority first.
+	private static final Comparator<EntityInterest> BY_PRIORITY = new Comparator<EntityInterest>() {
+		@Override
+		public int compare(EntityInterest a, EntityInterest b) {
+			return Float.compare(b.priority, a.priority);
+		}
+	};
+	// Entities within the area of interest of each peer, by peer id and entity id.
+	private HashMap<Integer, HashMap<Integer, EntityInterest>> interests = new HashMap<Integer, HashMap<Integer, EntityInterest>>();
+	private long lastBroadcastTime = 0;
+	// Working sets of broadcastWorldState, cleared every tick.
+	private HashMap<Integer, Vector3f> focus = new HashMap<Integer, Vector3f>(); // Position of the character of every peer.
+	private HashSet<Integer> peerIds = new HashSet<Integer>();
+	private HashMap<Integer, EntityStateMessage> built = new HashMap<Integer, EntityStateMessage>(); // States built this tick, shared by all peers.
+	private ArrayList<EntityInterest> candidates = new ArrayList<EntityInterest>();
+	private HashSet<Integer> changed = new HashSet<Integer>(); // Our entities with a custom state change, read once before any state is built.
+
 	/// @return A list of all the entities in the world.
 	public ArrayList<Entity> getEntities() {
 		return entities;
@@ -192,6 +233,12 @@ public class World {
     }
     
     
+    /// Creates an empty world without terrain, physics or audio, used by the benchmarks.
+	/// @param rootNode Scene node that entities are attached to, not attached to any scene.
+	World(Node rootNode) {
+		this.rootNode = rootNode;
+	}
+
     /// Constructor
 	public World() {
 		this.bulletAppState = Application.getInstance().getBulletAppState();
@@ -223,7 +270,7 @@ public class World {
 
 			AbstractHeightMap heightmap = null;
 			try {
-				heightmap = new HillHeightMap(1025, 1, 1.0f, 2.0f, 255);
+				heightmap = new HillHeightMap(TERRAIN_SIZE, 1, 1.0f, 2.0f, 255);
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -232,7 +279,7 @@ public class World {
 			heightmap.load();
 
 			int patchSize = 65;
-			terrain = new TerrainQuad("Terrain", patchSize, 1025,
+			terrain = new TerrainQuad("Terrain", patchSize, TERRAIN_SIZE,
 					heightmap.getHeightMap());
 			terrain.setMaterial(terrainMaterial);
 			rootNode.attachChild(terrain);
@@ -307,23 +354,139 @@ public class World {
 	/// This is used for frequent state regeneration and is meant to be called frequently 
 	///		during the session. All messages will be sent unreliably as we don't care if we
 	///		drop a few packets as the content will get outdated really quickly. 
+	/// Each peer only receives states of the entities within RELEVANCE_RADIUS of its character, and
+	///		of entities that are always relevant (See Entity.isAlwaysRelevant). Within that set every
+	///		entity accumulates priority for each peer, faster for important types, for entities close
+	///		to the peer and for entities that have moved since last sent to the peer. Each tick a peer
+	///		receives the entities with the highest priority that fit in a packet.
+	///		An entity entering the area of interest of a peer is sent first, as the peer may have missed changes.
 	public void broadcastWorldState() {
 		Session session = Application.getInstance().getSession();
+		long currentTime = System.currentTimeMillis();
+		float dt = (lastBroadcastTime == 0) ? 0.0f : Math.min((currentTime - lastBroadcastTime) / 1000.0f, 1.0f);
+		lastBroadcastTime = currentTime;
+		
+		// Find the character of every peer, peers without a character receives everything
+		focus.clear();
 		for(Entity entity : entities) {
-			if(entity.getOwner() == session.getMyPeerId()) {
-				EntityStateMessage msg = entity.buildStateMessage();
-				if(msg != null) {
-					try {
-						session.sendToAll(msg, false);
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+			if(entity.getType() == Entity.Type.CHARACTER) {
+				focus.put(entity.getOwner(), entity.getPosition());
+			}
+		}
+		
+		// Forget peers that have left
+		peerIds.clear();
+		for(Peer peer : session.getPeers()) {
+			peerIds.add(peer.getId());
+		}
+		interests.keySet().retainAll(peerIds);
+		
+		int maxStates = (NetWrite.MAX_BUNDLE_SIZE - NetCodec.HEADER_SIZE) / STATE_SIZE_ESTIMATE;
+		built.clear();
+		
+		// Building a state resets the change, so it is read once for all peers
+		changed.clear();
+		for(Entity entity : entities) {
+			if(entity.getOwner() == session.getMyPeerId() && entity.hasCustomStateChanged()) {
+				changed.add(entity.getId());
+			}
+		}
+		
+		for(Peer peer : session.getPeers()) {
+			HashMap<Integer, EntityInterest> interest;
+			if(interests.containsKey(peer.getId())) {
+				interest = interests.get(peer.getId());
+			} else {
+				interest = new HashMap<Integer, EntityInterest>();
+				interests.put(peer.getId(), interest);
+			}
+			
+			// Accumulate priority for every relevant entity
+			Vector3f center = focus.get(peer.getId());
+			candidates.clear();
+			for(Entity entity : entities) {
+				if(entity.getOwner() != session.getMyPeerId()) {
+					continue;
+				}
+				if(!isRelevant(entity, center)) {
+					interest.remove(entity.getId()); // Left the area of interest, if it was in it
+					continue;
+				}
+				
+				EntityInterest e = interest.get(entity.getId());
+				if(e == null) {
+					e = new EntityInterest();
+					interest.put(entity.getId(), e);
+				}
+				Vector3f position = entity.getPosition();
+				float distance = (center != null) ? position.distance(center) : 0.0f;
+				float moved = (e.lastSentPosition != null) ? position.distance(e.lastSentPosition) : 0.0f;
+				e.priority += priorityGain(entity.getType(), distance, moved, dt);
+				if(changed.contains(entity.getId())) {
+					e.priority += SEND_THRESHOLD; // Changes like a flag being picked up are sent as soon as possible
 				}
+				
+				if(e.priority >= SEND_THRESHOLD) {
+					e.entity = entity;
+					candidates.add(e);
+				}
+			}
+			
+			// Send the entities with the highest priority
+			Collections.sort(candidates, BY_PRIORITY);
+			for(int i = 0; i < candidates.size() && i < maxStates; ++i) {
+				EntityInterest e = candidates.get(i);
+				Entity entity = e.entity;
+				EntityStateMessage msg = built.get(entity.getId());
+				if(msg == null) {
+					msg = entity.buildStateMessage(true);
+					built.put(entity.getId(), msg);
+				}
+				
+				e.priority = 0.0f;
+				if(e.lastSentPosition == null) {
+					e.lastSentPosition = entity.getPosition().clone();
+				} else {
+					e.lastSentPosition.set(entity.getPosition());
+				}
+				// Sent straight to the peer, the session is connected while the world is broadcast and the peer is one of its peers
+				peer.send(msg, false);
 			}
 		}
 	}
 
+	/// @return True if the states of the entity should be sent to a peer with its character at the specified position.
+	/// @param center Position of the character of the peer, null if the peer has no character and receives everything.
+	static boolean isRelevant(Entity entity, Vector3f center) {
+		return center == null || entity.isAlwaysRelevant()
+				|| entity.getPosition().distanceSquared(center) <= RELEVANCE_RADIUS * RELEVANCE_RADIUS;
+	}
+
+	/// @return Priority an entity gains for a peer in one tick of broadcastWorldState.
+	/// @param distance Distance between the entity and the character of the peer.
+	/// @param moved Distance the entity have moved since its state was last sent to the peer.
+	/// @param dt Time since the last tick, in seconds.
+	static float priorityGain(Entity.Type type, float distance, float moved, float dt) {
+		float distanceWeight = 1.0f / (1.0f + distance / DISTANCE_SCALE);
+		return typeWeight(type) * distanceWeight * (dt + CHANGE_WEIGHT * moved);
+	}
+
+	/// @return How fast entities of the specified type gains priority in broadcastWorldState, relative to characters.
+	private static float typeWeight(Entity.Type type) {
+		switch(type) {
+		case CHARACTER:
+			return 1.0f;
+		case AI_CHARACTER:
+		case FLAG:
+			return 0.8f;
+		case CRATE:
+			return 0.5f;
+		case CAMP_FIRE:
+			return 0.2f;
+		}
+		return 1.0f;
+	}
+
 	/// @brief Broadcasts the creation of the world, sending CREATE_ENTITY messages for all entities.
 	/// This is meant to be sent to newly connected peers as they have no spawned entities.
 	/// @param peer The peer that should receive the messages.
@@ -333,7 +496,7 @@ public class World {
 			if(entity.getOwner() == session.getMyPeerId()) {
 				try {
 					CreateEntityMessage msg = new CreateEntityMessage(entity.getId(), entity.getType(), 
-							entity.getPosition(), entity.getRotation());
+							entity.getPosition().clone(), entity.getRotation().clone());
 					session.sendToPeer(msg, peer, true);
 				} catch (Exception e) {
 					// TODO Auto-generated catch block
@@ -397,6 +560,7 @@ public class World {
 		if(entity != null) {
 			entities.remove(entity);
 			entity.destroy();
+			forgetEntity(entity.getId());
 		}
 	}
 	
@@ -480,6 +644,21 @@ public class World {
 		if(entity.ownerPeer == Application.getInstance().getSession().getMyPeerId()) {
 			broadcastDestroyEntity(entity);
 		}
+		forgetEntity(entity.getId());
+	}
+	
+	/// @brief Changes the owner of an entity.
+	public void setEntityOwner(Entity entity, int peerId) {
+		entity.setOwner(peerId);
+		forgetEntity(entity.getId());
+	}
+	
+	/// @brief Forgets what have been sent to peers about an entity that have been destroyed or changed owner.
+	private void forgetEntity(int entityId) {
+		for(HashMap<Integer, EntityInterest> interest : interests.values()) {
+			interest.remove(entityId);
+		}
+		Application.getInstance().getSession().forgetEntity(entityId);
 	}
 	
 	/// @brief Migrates all entities from one peer to another.
@@ -495,12 +674,13 @@ public class World {
 					// Destroy if we cannot change ownership
 					entity.destroy();
 					it.remove();
+					forgetEntity(entity.getId());
 					
 				}
 				else
 				{
 					// Otherwise we just change owner
-					entity.setOwner(newPeer);
+					setEntityOwner(entity, newPeer);
 				}
 			}
 		}
@@ -512,6 +692,7 @@ public class World {
 			e.destroy();
 		}
 		entities.clear();
+		interests.clear();
 	}
 	
 	/// @return Root JMonkey node for this world.
@@ -532,7 +713,7 @@ public class World {
 	
 	/// @brief Broadcast that we created a new entity.
 	private void broadcastNewEntity(Entity entity, Vector3f position) {
-		CreateEntityMessage msg = new CreateEntityMessage(entity.getId(), entity.getType(), position, entity.getRotation());
+		CreateEntityMessage msg = new CreateEntityMessage(entity.getId(), entity.getType(), position.clone(), entity.getRotation().clone());
 		try {
 			if(Application.getInstance().getSession().getState() == Session.State.CONNECTED) {
 				Application.getInstance().getSession().sendToAll(msg, true);
@@ -569,7 +750,7 @@ public class World {
 	public void processEntityOwnerChange(EntityNewOwnerMessage m) {
 		Entity entity = getEntity(m.entityId);
 		if(entity != null) {
-			entity.setOwner(m.ownerId);
+			setEntityOwner(entity, m.ownerId);
 		}
 	}
 }
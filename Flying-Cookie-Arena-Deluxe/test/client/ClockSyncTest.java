@@ -0,0 +1,57 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/// Offset and round trip estimates of ClockSync from PING/PONG times.
+public class ClockSyncTest {
+	/// Adds an exchange with a peer whose clock is offset ms ahead, taking up and down ms each way.
+	private boolean exchange(ClockSync sync, long time, long offset, long up, long down) {
+		long pingReceive = time + up + offset;
+		long pongSend = pingReceive + 5; // Time the peer holds the ping
+		return sync.addSample(time, pingReceive, pongSend, pongSend - offset + down);
+	}
+
+	@Test
+	public void symmetricPathGivesTheExactOffset() {
+		ClockSync sync = new ClockSync();
+		assertEquals(-1, sync.getRoundTripTime());
+		assertTrue(exchange(sync, 1000, 300, 20, 20));
+		assertEquals(300, sync.getOffset());
+		assertEquals(40, sync.getRoundTripTime());
+		assertEquals(1300 - 300, sync.toLocalTime(1300));
+	}
+
+	@Test
+	public void leastDelayedSampleIsUsed() {
+		ClockSync sync = new ClockSync();
+		exchange(sync, 1000, 300, 10, 10);
+		// A queue on the way up makes the path unequal, and the offset of the sample wrong
+		exchange(sync, 2000, 300, 210, 10);
+		exchange(sync, 3000, 300, 110, 10);
+		assertEquals(300, sync.getOffset());
+	}
+
+	@Test
+	public void synchronizedAfterEnoughSamples() {
+		ClockSync sync = new ClockSync();
+		for(int i = 0; i < ClockSync.MIN_SAMPLES; ++i) {
+			assertFalse(sync.isSynchronized());
+			assertEquals(ClockSync.FAST_INTERVAL, sync.getPingInterval());
+			exchange(sync, 1000 * i, -50, 15, 15);
+		}
+		assertTrue(sync.isSynchronized());
+		assertEquals(ClockSync.INTERVAL, sync.getPingInterval());
+	}
+
+	@Test
+	public void implausibleSamplesAreRejected() {
+		ClockSync sync = new ClockSync();
+		assertFalse(exchange(sync, 1000, 0, ClockSync.MAX_DELAY, 10));
+		assertFalse(sync.addSample(1000, 1010, 1020, 900)); // The pong arrived before the ping was sent
+		assertEquals(-1, sync.getRoundTripTime());
+	}
+}
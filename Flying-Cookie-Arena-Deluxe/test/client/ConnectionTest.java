@@ -0,0 +1,98 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/// Acks and round trip estimates kept by Connection.
+public class ConnectionTest {
+	private Connection conn = new Connection(new InetSocketAddress("127.0.0.1", 1234));
+
+	@Test
+	public void ackBitsTrackTheLatestSequences() {
+		conn.packetReceived(10);
+		conn.packetReceived(8); // Reordered
+		conn.packetReceived(11);
+		assertEquals(11, conn.remoteSequence);
+		assertEquals(0x5, conn.receivedBits); // 10 and 8
+
+		conn.packetReceived(11 + 32);
+		assertEquals(1 << 31, conn.receivedBits); // Only 11 is still within the window
+		conn.packetReceived(100);
+		assertEquals(0, conn.receivedBits);
+	}
+
+	@Test
+	public void duplicateReliablesAreDetected() {
+		assertFalse(conn.reliableReceived(0));
+		assertFalse(conn.reliableReceived(2));
+		assertTrue(conn.isReliableReceived(0));
+		assertFalse(conn.isReliableReceived(1)); // Only checks, doesn't mark it as received
+		assertTrue(conn.reliableReceived(0));
+		assertFalse(conn.reliableReceived(1)); // Reordered
+		assertTrue(conn.reliableReceived(2));
+
+		// The window moves forward with the latest id
+		assertFalse(conn.reliableReceived(2 + Connection.RELIABLE_WINDOW));
+		assertTrue(conn.isReliableTooOld(2));
+		assertFalse(conn.isReliableTooOld(3));
+		assertFalse(conn.reliableReceived(3));
+	}
+
+	@Test
+	public void reliableIdsStayWithinTheWindowOfTheOldestUnacked() {
+		for(int i = 0; i < Connection.RELIABLE_WINDOW; ++i) {
+			assertTrue(conn.canSendReliable(1));
+			conn.reliableSent(conn.nextReliableId++);
+		}
+		assertFalse(conn.canSendReliable(1));
+
+		// Acking a later packet doesn't help while the oldest is unacked
+		conn.reliableAcked(1);
+		assertFalse(conn.canSendReliable(1));
+		conn.reliableAcked(0);
+		assertTrue(conn.canSendReliable(2));
+		assertFalse(conn.canSendReliable(3));
+	}
+
+	private static Message ordered(int sequence) {
+		Message msg = new ChatMessage("message " + sequence);
+		msg.channelSequence = sequence;
+		return msg;
+	}
+
+	@Test
+	public void orderedMessagesAreHeldBackUntilTheGapIsFilled() {
+		ArrayList<Message> out = new ArrayList<Message>();
+		conn.orderedReceived(ordered(1), out);
+		conn.orderedReceived(ordered(2), out);
+		assertTrue(out.isEmpty());
+
+		conn.orderedReceived(ordered(0), out);
+		assertEquals(3, out.size());
+		for(int i = 0; i < 3; ++i) {
+			assertEquals(i, out.get(i).channelSequence);
+		}
+
+		// Already delivered
+		out.clear();
+		conn.orderedReceived(ordered(1), out);
+		assertTrue(out.isEmpty());
+	}
+
+	@Test
+	public void retransmissionTimeoutFollowsTheRoundTrip() {
+		assertEquals(Connection.INITIAL_RTO, conn.rto);
+		for(int i = 0; i < 20; ++i) {
+			conn.addRttSample(100);
+		}
+		assertTrue(conn.rto >= 100 && conn.rto < 200);
+		assertEquals(conn.rto * 2, conn.backoffTimeout(1));
+		assertEquals(Connection.MAX_RTO, conn.backoffTimeout(10));
+	}
+}
@@ -0,0 +1,197 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Delta compression of entity states between a sending and a receiving EntityBaselines.
+public class EntityBaselinesTest {
+	private static final float POSITION_PRECISION = 0.02f;
+	private static final float VELOCITY_PRECISION = 0.05f;
+
+	private EntityBaselines sender = new EntityBaselines();
+	private EntityBaselines receiver = new EntityBaselines();
+	private int packetId = 0;
+
+	private static EntityStateMessage state(int sequence, float x, long timestamp) {
+		EntityStateMessage msg = new EntityStateMessage(70000, new Vector3f(x, 10.0f, -20.0f),
+				new Quaternion(0.0f, 0.0f, 0.0f, 1.0f), new Vector3f(1.0f, 0.0f, -2.0f));
+		msg.sequence = sequence;
+		msg.timestamp = timestamp;
+		return msg;
+	}
+
+	/// Encodes a state as NetWrite does, sent alone in a packet which is acked if specified.
+	private ByteBuffer write(EntityStateMessage msg, boolean acked) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		sender.write(msg, buf);
+		sender.addPending(msg, false);
+		sender.packetSent(packetId, false);
+		if(acked) {
+			sender.packetAcked(packetId);
+		}
+		packetId++;
+		buf.flip();
+		return buf;
+	}
+
+	private static void assertState(EntityStateMessage expected, EntityStateMessage actual) {
+		assertNotNull(actual);
+		assertEquals(expected.entityId, actual.entityId);
+		assertEquals(expected.timestamp, actual.timestamp);
+		assertEquals(expected.position.x, actual.position.x, POSITION_PRECISION);
+		assertEquals(expected.position.y, actual.position.y, POSITION_PRECISION);
+		assertEquals(expected.position.z, actual.position.z, POSITION_PRECISION);
+		assertEquals(expected.rotation.getW(), actual.rotation.getW(), 0.01f);
+		assertEquals(expected.velocity.x, actual.velocity.x, VELOCITY_PRECISION);
+		assertEquals(expected.velocity.z, actual.velocity.z, VELOCITY_PRECISION);
+	}
+
+	@Test
+	public void fullStateRoundTrip() throws IOException {
+		EntityStateMessage msg = state(1, 5.0f, 1000000L);
+		assertState(msg, receiver.read(write(msg, false)));
+	}
+
+	@Test
+	public void deltaAgainstAckedStateIsSmaller() throws IOException {
+		EntityStateMessage first = state(1, 5.0f, 1000000L);
+		ByteBuffer full = write(first, true);
+		receiver.read(full);
+
+		EntityStateMessage second = state(2, 5.0f, 1000100L);
+		ByteBuffer delta = write(second, true);
+		assertTrue(delta.remaining() < full.limit());
+		assertState(second, receiver.read(delta));
+
+		EntityStateMessage moved = state(3, 6.0f, 1000200L);
+		assertState(moved, receiver.read(write(moved, true)));
+	}
+
+	@Test
+	public void unackedStatesAreNoBaseline() throws IOException {
+		ByteBuffer full = write(state(1, 5.0f, 1000000L), false);
+		receiver.read(full);
+		assertEquals(full.limit(), write(state(2, 5.0f, 1000100L), false).remaining());
+	}
+
+	@Test
+	public void fullStateIsSentPeriodically() throws IOException {
+		ByteBuffer full = write(state(1, 5.0f, 1000000L), true);
+		for(int sequence = 2; sequence < EntityBaselines.FULL_STATE_INTERVAL; ++sequence) {
+			assertTrue(write(state(sequence, 5.0f, 1000000L), true).remaining() < full.limit());
+		}
+		assertEquals(full.limit(), write(state(EntityBaselines.FULL_STATE_INTERVAL, 5.0f, 1000000L), true).remaining());
+	}
+
+	@Test
+	public void nullFieldsRoundTrip() throws IOException {
+		EntityStateMessage msg = new EntityStateMessage(1, new Vector3f(1.0f, 2.0f, 3.0f), null, null);
+		msg.sequence = 1;
+		EntityStateMessage read = receiver.read(write(msg, true));
+		assertNotNull(read.position);
+		assertNull(read.rotation);
+		assertNull(read.velocity);
+
+		msg = new EntityStateMessage(1, null, null, null);
+		msg.sequence = 2;
+		read = receiver.read(write(msg, true));
+		assertNull(read.position);
+	}
+
+	@Test
+	public void olderStateIsDroppedButKeptAsBaseline() throws IOException {
+		ByteBuffer older = write(state(1, 5.0f, 1000000L), false);
+		ByteBuffer newer = write(state(2, 6.0f, 1000100L), false);
+		assertNotNull(receiver.read(newer));
+		assertNull(receiver.read(older));
+
+		// The sender only knows that state 1 was received, so the next delta is against it
+		sender.packetAcked(0);
+		EntityStateMessage next = state(3, 7.0f, 1000200L);
+		assertState(next, receiver.read(write(next, true)));
+	}
+
+	@Test
+	public void forgottenEntityStartsOver() throws IOException {
+		for(int sequence = 1; sequence <= 10; ++sequence) {
+			receiver.read(write(state(sequence, 5.0f, 1000000L + sequence * 100L), true));
+		}
+
+		// A new owner sends its states from its own sequence
+		sender.forget(70000);
+		receiver.forget(70000);
+		EntityStateMessage first = state(1, 8.0f, 2000000L);
+		assertState(first, receiver.read(write(first, true)));
+	}
+
+	@Test
+	public void sequenceWrapsAround() throws IOException {
+		for(int sequence = 65530; sequence < 65560; ++sequence) {
+			EntityStateMessage msg = state(sequence, sequence % 50, 1000000L + sequence * 100L);
+			EntityStateMessage read = receiver.read(write(msg, true));
+			assertState(msg, read);
+			assertEquals(sequence & 0xFFFF, read.sequence & 0xFFFF);
+		}
+	}
+
+	@Test
+	public void historyStartsOverAfterALongSilence() throws IOException {
+		for(int sequence = 1; sequence <= 3; ++sequence) {
+			receiver.read(write(state(sequence, 5.0f, 1000000L + sequence * 100L), true));
+		}
+
+		// More than half the sequence space later, it looks like an older state unless the receiver starts over
+		EntityStateMessage later = state(3 + 40000, 9.0f, 1000300L + EntityBaselines.RESET_TIME + 1);
+		assertState(later, receiver.read(write(later, true)));
+		EntityStateMessage next = state(3 + 40001, 9.5f, 1000400L + EntityBaselines.RESET_TIME + 1);
+		assertState(next, receiver.read(write(next, true)));
+	}
+
+	@Test
+	public void timestampTooFarFromBaselineSendsFullState() throws IOException {
+		ByteBuffer full = write(state(1, 5.0f, 1000000L), true);
+		int fullSize = full.remaining();
+		receiver.read(full);
+
+		EntityStateMessage late = state(2, 5.0f, 1000000L + 70000L);
+		ByteBuffer buf = write(late, true);
+		assertEquals(fullSize, buf.remaining());
+		assertState(late, receiver.read(buf));
+	}
+
+	@Test
+	public void deltaWithUnknownBaselineIsDropped() throws IOException {
+		write(state(1, 5.0f, 1000000L), true); // Acked, but never reaches the receiver
+		assertNull(receiver.read(write(state(2, 5.0f, 1000100L), true)));
+	}
+
+	@Test
+	public void customDataOnlySentWhenChanged() throws IOException {
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		data.put("burning", true);
+		EntityStateMessage msg = new EntityStateMessage(1, new Vector3f(), new Quaternion(), new Vector3f(), data);
+		msg.sequence = 1;
+		assertEquals(data, receiver.read(write(msg, true)).customData);
+
+		msg = new EntityStateMessage(1, new Vector3f(), new Quaternion(), new Vector3f(), data);
+		msg.sequence = 2;
+		assertNull(receiver.read(write(msg, true)).customData);
+
+		data = new HashMap<String, Object>();
+		data.put("burning", false);
+		msg = new EntityStateMessage(1, new Vector3f(), new Quaternion(), new Vector3f(), data);
+		msg.sequence = 3;
+		assertEquals(data, receiver.read(write(msg, true)).customData);
+	}
+}
@@ -0,0 +1,111 @@
+package client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/// Reassembly of fragmented messages by FragmentAssembler.
+public class FragmentAssemblerTest {
+	private FragmentAssembler assembler = new FragmentAssembler();
+
+	private static byte[] message(int length) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; ++i) {
+			data[i] = (byte)i;
+		}
+		return data;
+	}
+
+	private static ByteBuffer fragment(byte[] message, int index) {
+		int offset = index * NetWrite.FRAGMENT_SIZE;
+		return ByteBuffer.wrap(message, offset, Math.min(NetWrite.FRAGMENT_SIZE, message.length - offset));
+	}
+
+	private static byte[] bytes(ByteBuffer buf) {
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		return data;
+	}
+
+	@Test
+	public void fragmentsAreReassembledInAnyOrder() {
+		byte[] message = message(NetWrite.FRAGMENT_SIZE * 2 + 10);
+		assertNull(assembler.add(1, 2, 3, fragment(message, 2)));
+		assertNull(assembler.add(1, 0, 3, fragment(message, 0)));
+		ByteBuffer whole = assembler.add(1, 1, 3, fragment(message, 1));
+		assertNotNull(whole);
+		assertArrayEquals(message, bytes(whole));
+	}
+
+	@Test
+	public void duplicateFragmentIsIgnored() {
+		byte[] message = message(NetWrite.FRAGMENT_SIZE + 1);
+		assertNull(assembler.add(1, 0, 2, fragment(message, 0)));
+		assertNull(assembler.add(1, 0, 2, fragment(message, 0)));
+		assertEquals(message.length, assembler.add(1, 1, 2, fragment(message, 1)).remaining());
+	}
+
+	@Test
+	public void malformedFragmentsAreDropped() {
+		byte[] message = message(NetWrite.FRAGMENT_SIZE * 2);
+		assertNull(assembler.add(1, 0, 1, fragment(message, 0))); // A single fragment
+		assertNull(assembler.add(1, 2, 2, fragment(message, 0))); // Index out of range
+		assertNull(assembler.add(1, 0, FragmentAssembler.MAX_FRAGMENTS + 1, fragment(message, 0)));
+		assertNull(assembler.add(1, 0, 2, ByteBuffer.wrap(message, 0, 10))); // Short fragment that isn't the last
+
+		// None of them started a message
+		assertNull(assembler.add(1, 0, 2, fragment(message, 0)));
+		assertNotNull(assembler.add(1, 1, 2, fragment(message, 1)));
+	}
+
+	@Test
+	public void pendingBytesAreBounded() {
+		int count = FragmentAssembler.MAX_FRAGMENTS;
+		byte[] message = message(NetWrite.FRAGMENT_SIZE * count);
+		int groups = FragmentAssembler.MAX_PENDING_BYTES / message.length;
+		for(int group = 0; group <= groups; ++group) {
+			assertNull(assembler.add(group, 0, count, fragment(message, 0)));
+		}
+
+		// The last group didn't fit, so its fragments are dropped even when complete
+		for(int i = 1; i < count; ++i) {
+			assertNull(assembler.add(groups, i, count, fragment(message, i)));
+		}
+		for(int i = 1; i < count - 1; ++i) {
+			assertNull(assembler.add(0, i, count, fragment(message, i)));
+		}
+		assertNotNull(assembler.add(0, count - 1, count, fragment(message, count - 1)));
+	}
+
+	@Test
+	public void reliableMessagesMakeRoomButAreNeverDropped() {
+		int count = FragmentAssembler.MAX_FRAGMENTS;
+		byte[] message = message(NetWrite.FRAGMENT_SIZE * count);
+		int groups = FragmentAssembler.MAX_PENDING_BYTES / message.length;
+		for(int group = 0; group < groups; ++group) {
+			assertNull(assembler.add(group, 0, count, fragment(message, 0)));
+		}
+
+		// The unreliable messages are dropped to make room
+		for(int group = groups; group < 2 * groups; ++group) {
+			assertTrue(assembler.reserve(group, count));
+		}
+		assertTrue(assembler.reserve(groups, count)); // Already reserved
+
+		// Full of reliable messages, the next one is refused until one of them is complete
+		assertFalse(assembler.reserve(2 * groups, count));
+		assertNull(assembler.add(2 * groups, 0, count, fragment(message, 0)));
+		for(int i = 0; i < count - 1; ++i) {
+			assertNull(assembler.add(groups, i, count, fragment(message, i)));
+		}
+		assertNotNull(assembler.add(groups, count - 1, count, fragment(message, count - 1)));
+		assertTrue(assembler.reserve(2 * groups, count));
+	}
+}
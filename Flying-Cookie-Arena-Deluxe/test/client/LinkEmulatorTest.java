@@ -0,0 +1,97 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/// Packets passed through the incoming side of LinkEmulator, sent over a loopback network.
+public class LinkEmulatorTest {
+	private LoopbackTransport.Network network = new LoopbackTransport.Network();
+	private Transport sender;
+	private ByteBuffer buf = ByteBuffer.allocate(NetWrite.MAX_PACKET_SIZE);
+
+	@Before
+	public void setUp() throws IOException {
+		sender = network.open(0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		sender.close();
+	}
+
+	/// Sends the numbers 0 to count - 1, one packet each.
+	private void sendNumbers(int count, InetSocketAddress dest) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(4);
+		for(int i = 0; i < count; ++i) {
+			data.clear();
+			data.putInt(i);
+			data.flip();
+			sender.send(data, dest);
+		}
+	}
+
+	/// @return The next number coming out of the emulator, or null if nothing arrives for a while.
+	private Integer receiveNumber(LinkEmulator emulator) throws IOException {
+		long end = System.currentTimeMillis() + 300;
+		while(System.currentTimeMillis() < end) {
+			buf.clear();
+			if(emulator.receive(buf) != null) {
+				return buf.getInt(0);
+			}
+		}
+		return null;
+	}
+
+	/// @return The numbers coming out of the emulator, until nothing arrives for a while.
+	private ArrayList<Integer> receiveNumbers(LinkEmulator emulator) throws IOException {
+		ArrayList<Integer> numbers = new ArrayList<Integer>();
+		Integer number;
+		while((number = receiveNumber(emulator)) != null) {
+			numbers.add(number);
+		}
+		return numbers;
+	}
+
+	@Test
+	public void sameSeedLosesTheSamePackets() throws Exception {
+		ArrayList<ArrayList<Integer>> runs = new ArrayList<ArrayList<Integer>>();
+		for(int run = 0; run < 2; ++run) {
+			LinkEmulator emulator = new LinkEmulator(network.open(0), 42, null, new LinkEmulator.Conditions(0, 0, 0.5f));
+			emulator.start();
+			sendNumbers(100, emulator.getLocalAddress());
+			runs.add(receiveNumbers(emulator));
+			emulator.close();
+		}
+		assertTrue(runs.get(0).size() > 20 && runs.get(0).size() < 80);
+		assertEquals(runs.get(0), runs.get(1));
+	}
+
+	@Test
+	public void latencyDelaysButKeepsTheOrder() throws Exception {
+		LinkEmulator emulator = new LinkEmulator(network.open(0), 1, null, new LinkEmulator.Conditions(150, 50, 0.0f));
+		emulator.start();
+		long start = System.currentTimeMillis();
+		sendNumbers(10, emulator.getLocalAddress());
+		buf.clear();
+		assertNull(emulator.receive(buf)); // Gives up after a 100 ms poll
+
+		Integer first = receiveNumber(emulator);
+		assertNotNull(first);
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		ArrayList<Integer> numbers = receiveNumbers(emulator);
+		numbers.add(0, first);
+		assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", numbers.toString());
+		emulator.close();
+	}
+}
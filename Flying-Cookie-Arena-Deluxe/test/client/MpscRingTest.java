@@ -0,0 +1,125 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/// Ordering and bounds of the preallocated queue.
+public class MpscRingTest {
+	private static class Item {
+		long value;
+	}
+
+	private static final MpscRing.Factory<Item> FACTORY = new MpscRing.Factory<Item>() {
+		public Item create() {
+			return new Item();
+		}
+	};
+
+	private static boolean offer(MpscRing<Item> ring, long value) {
+		long position = ring.claim();
+		if(position < 0) {
+			return false;
+		}
+		ring.get(position).value = value;
+		ring.publish(position);
+		return true;
+	}
+
+	private static long poll(MpscRing<Item> ring) {
+		Item item = ring.peek();
+		long value = item.value;
+		ring.release();
+		return value;
+	}
+
+	@Test
+	public void elementsComeOutInOrder() {
+		MpscRing<Item> ring = new MpscRing<Item>(4, FACTORY);
+		assertNull(ring.peek());
+		for(int lap = 0; lap < 3; ++lap) {
+			for(int i = 0; i < 3; ++i) {
+				assertEquals(true, offer(ring, lap * 10 + i));
+			}
+			assertEquals(3, ring.size());
+			for(int i = 0; i < 3; ++i) {
+				assertEquals(lap * 10 + i, poll(ring));
+			}
+			assertNull(ring.peek());
+		}
+	}
+
+	@Test
+	public void fullRingRejectsClaims() {
+		MpscRing<Item> ring = new MpscRing<Item>(3, FACTORY); // Rounded up to 4
+		for(int i = 0; i < 4; ++i) {
+			assertEquals(true, offer(ring, i));
+		}
+		assertEquals(-1, ring.claim());
+		assertEquals(0, poll(ring));
+		assertEquals(true, offer(ring, 4));
+		assertEquals(-1, ring.claim());
+	}
+
+	@Test
+	public void claimedSlotIsHiddenUntilPublished() {
+		MpscRing<Item> ring = new MpscRing<Item>(4, FACTORY);
+		long first = ring.claim();
+		assertEquals(true, offer(ring, 2));
+		assertNull(ring.peek());
+		ring.get(first).value = 1;
+		ring.publish(first);
+		assertEquals(1, poll(ring));
+		assertEquals(2, poll(ring));
+	}
+
+	@Test
+	public void elementsAreReused() {
+		MpscRing<Item> ring = new MpscRing<Item>(2, FACTORY);
+		offer(ring, 1);
+		Item item = ring.peek();
+		ring.release();
+		offer(ring, 2);
+		offer(ring, 3);
+		poll(ring);
+		assertSame(item, ring.peek());
+	}
+
+	@Test(timeout = 10000)
+	public void producersKeepTheirOwnOrder() throws InterruptedException {
+		final int producers = 4;
+		final int count = 100000;
+		final MpscRing<Item> ring = new MpscRing<Item>(64, FACTORY);
+		Thread[] threads = new Thread[producers];
+		for(int p = 0; p < producers; ++p) {
+			final int producer = p;
+			threads[p] = new Thread() {
+				public void run() {
+					for(int i = 0; i < count; ++i) {
+						while(!offer(ring, (long)producer * count + i)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		long[] next = new long[producers];
+		for(int received = 0; received < producers * count; ++received) {
+			Item item;
+			while((item = ring.peek()) == null) {
+				Thread.yield();
+			}
+			int producer = (int)(item.value / count);
+			assertEquals(next[producer]++, item.value % count);
+			ring.release();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		assertNull(ring.peek());
+	}
+}
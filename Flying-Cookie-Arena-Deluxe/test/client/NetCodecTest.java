@@ -0,0 +1,124 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/// Round trips of packet headers, records and messages through NetCodec.
+public class NetCodecTest {
+	private Connection conn = new Connection(new InetSocketAddress("127.0.0.1", 1234));
+
+	@Test
+	public void headerRoundTrip() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		NetCodec.writeHeader(NetPacket.RELIABLE_MESSAGE, 7, 42, 41, 0x5, buf);
+		assertEquals(NetCodec.HEADER_SIZE, buf.position());
+
+		buf.flip();
+		NetPacket packet = NetCodec.readPacket(buf);
+		assertEquals(NetPacket.RELIABLE_MESSAGE, packet.type);
+		assertEquals(7, packet.id);
+		assertEquals(42, packet.sequence);
+		assertEquals(41, packet.ack);
+		assertEquals(0x5, packet.ackBits);
+		assertEquals(0, buf.remaining());
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownPacketTypeIsRejected() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		NetCodec.writeHeader(9, 0, 0, -1, 0, buf);
+		buf.flip();
+		NetCodec.readPacket(buf);
+	}
+
+	@Test
+	public void messageRoundTrip() throws IOException {
+		ChatMessage msg = new ChatMessage("hello");
+		msg.peer = 3;
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		NetCodec.writeMessage(msg, buf, conn);
+		buf.flip();
+
+		ChatMessage read = (ChatMessage)NetCodec.readMessage(buf, conn);
+		assertEquals(Message.Type.CHAT_MSG, read.type);
+		assertEquals(3, read.peer);
+		assertEquals("hello", read.message);
+		assertEquals(0, buf.remaining());
+	}
+
+	@Test
+	public void peerListCarriesTheFeaturesOfEveryPeer() throws IOException {
+		PeerListMessage msg = new PeerListMessage();
+		msg.peers.add(msg.new RawPeer(1, InetAddress.getByName("192.168.0.10"), 23456, HelloMessage.FEATURE_COMPRESSION));
+		msg.peers.add(msg.new RawPeer(0, null, -1, 0));
+		ByteBuffer buf = ByteBuffer.allocate(256);
+		NetCodec.writeMessage(msg, buf, conn);
+		buf.flip();
+
+		PeerListMessage read = (PeerListMessage)NetCodec.readMessage(buf, conn);
+		assertEquals(2, read.peers.size());
+		assertEquals(23456, read.peers.get(0).port);
+		assertEquals(HelloMessage.FEATURE_COMPRESSION, read.peers.get(0).features);
+		assertEquals(0, read.peers.get(1).features);
+		assertEquals(0, buf.remaining());
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownMessageTypeIsRejected() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(64);
+		buf.put((byte)0xFF).putInt(3);
+		buf.flip();
+		NetCodec.readMessage(buf, conn);
+	}
+
+	@Test
+	public void recordsAreReadOneByOne() throws IOException {
+		ByteBuffer packet = ByteBuffer.allocate(256);
+		for(int i = 0; i < 3; ++i) {
+			ByteBuffer msg = ByteBuffer.allocate(64);
+			NetCodec.writeMessage(new ChatMessage("message " + i), msg, conn);
+			msg.flip();
+			NetCodec.writeRecord(msg, packet);
+		}
+		packet.flip();
+
+		for(int i = 0; i < 3; ++i) {
+			assertEquals("message " + i, ((ChatMessage)NetCodec.readRecord(packet, conn)).message);
+		}
+		assertEquals(0, packet.remaining());
+	}
+
+	@Test
+	public void truncatedRecordIsSkipped() throws IOException {
+		ByteBuffer packet = ByteBuffer.allocate(256);
+		packet.putShort((short)100).put(new byte[10]);
+		packet.flip();
+		assertEquals(null, NetCodec.readRecord(packet, conn));
+		assertEquals(0, packet.remaining());
+	}
+
+	@Test
+	public void varIntRoundTrip() throws IOException {
+		int[] values = { 0, 1, 127, 128, 16383, 16384, 70000, Integer.MAX_VALUE, -1 };
+		int[] sizes = { 1, 1, 1, 2, 2, 3, 3, 5, 5 };
+		for(int i = 0; i < values.length; ++i) {
+			ByteBuffer buf = ByteBuffer.allocate(8);
+			NetCodec.writeVarInt(values[i], buf);
+			assertEquals("Size of " + values[i], sizes[i], buf.position());
+			buf.flip();
+			assertEquals(values[i], NetCodec.readVarInt(buf));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void malformedVarIntIsRejected() throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(new byte[] { (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0 });
+		NetCodec.readVarInt(buf);
+	}
+}
@@ -0,0 +1,432 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/// Coalescing and resending of NetWrite, received through a local UDP socket.
+public class NetWriteTest {
+	private DatagramChannel sender;
+	private DatagramChannel receiver;
+	private InetSocketAddress dest;
+	private NetWrite netWrite;
+	private ByteBuffer buf = ByteBuffer.allocate(NetWrite.MAX_PACKET_SIZE);
+	private Connection conn = new Connection(new InetSocketAddress("127.0.0.1", 1234)); // Decodes the received records.
+
+	@Before
+	public void setUp() throws IOException {
+		sender = DatagramChannel.open();
+		sender.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		receiver = DatagramChannel.open();
+		receiver.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		receiver.socket().setSoTimeout(200);
+		dest = (InetSocketAddress)receiver.socket().getLocalSocketAddress();
+		netWrite = new NetWrite(new UdpTransport(sender));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		sender.close();
+		receiver.close();
+	}
+
+	/// @return The header of the next datagram, with the records left in buf, or null if nothing arrives in time.
+	private NetPacket receive() throws IOException {
+		receiver.configureBlocking(false);
+		long end = System.currentTimeMillis() + 200;
+		buf.clear();
+		while(receiver.receive(buf) == null) {
+			if(System.currentTimeMillis() > end) {
+				return null;
+			}
+			Thread.yield();
+		}
+		buf.flip();
+		return NetCodec.readPacket(buf);
+	}
+
+	/// @return The messages in the records left in buf.
+	private ArrayList<String> records() {
+		ArrayList<String> messages = new ArrayList<String>();
+		while(buf.hasRemaining()) {
+			messages.add(((ChatMessage)NetCodec.readRecord(buf, conn)).message);
+		}
+		return messages;
+	}
+
+	@Test
+	public void messagesAreCoalescedUntilFlush() throws IOException {
+		netWrite.send(dest, new ChatMessage("c"), true);
+		assertNull(receive());
+
+		netWrite.send(dest, new ChatMessage("a"), false);
+		netWrite.send(dest, new ChatMessage("b"), false);
+		netWrite.flush();
+		// The reliable packet is sent first, then the unreliable messages with the newest first
+		assertEquals(NetPacket.RELIABLE_MESSAGE, receive().type);
+		assertEquals("[c]", records().toString());
+		assertEquals(NetPacket.MESSAGE, receive().type);
+		assertEquals("[b, a]", records().toString());
+		assertNull(receive());
+	}
+
+	@Test
+	public void fullPacketIsSentBeforeTheNextOne() throws IOException {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetWrite.MAX_BUNDLE_SIZE / 3) {
+			text.append('x');
+		}
+		for(int i = 0; i < 3; ++i) {
+			netWrite.send(dest, new ChatMessage(text.toString()), false);
+		}
+		netWrite.flush();
+		NetPacket packet = receive();
+		assertEquals(NetPacket.MESSAGE, packet.type);
+		assertEquals(2, records().size());
+		receive();
+		assertEquals(1, records().size());
+		assertNull(receive());
+	}
+
+	@Test
+	public void largeMessageIsSentAsFragments() throws IOException {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetWrite.MAX_BUNDLE_SIZE * 2) {
+			text.append('x');
+		}
+		netWrite.send(dest, new ChatMessage("a"), true);
+		netWrite.send(dest, new ChatMessage(text.toString()), true);
+		netWrite.flush();
+
+		// Every fragment fills a packet of its own, the first one flushes the pending message
+		ArrayList<Message> messages = new ArrayList<Message>();
+		NetPacket packet;
+		int packets = 0;
+		while((packet = receive()) != null) {
+			assertTrue(buf.limit() <= NetWrite.MAX_BUNDLE_SIZE);
+			while(buf.hasRemaining()) {
+				Message msg = NetCodec.readRecord(buf, conn);
+				if(msg != null) {
+					messages.add(msg);
+				}
+			}
+			packets++;
+		}
+		assertEquals(4, packets);
+		assertEquals(2, messages.size());
+		assertEquals(text.toString(), ((ChatMessage)messages.get(1)).message);
+	}
+
+	@Test
+	public void broadcastIsQueuedForEveryDestination() throws IOException {
+		DatagramChannel other = DatagramChannel.open();
+		try {
+			other.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			ArrayList<InetSocketAddress> dests = new ArrayList<InetSocketAddress>();
+			dests.add(dest);
+			dests.add((InetSocketAddress)other.socket().getLocalSocketAddress());
+			netWrite.send(dests, new ChatMessage("a"), MessageChannel.UNRELIABLE);
+			netWrite.send(dests, new ChatMessage("b"), MessageChannel.UNRELIABLE);
+			netWrite.flush();
+			assertEquals(NetPacket.MESSAGE, receive().type);
+			assertEquals("[b, a]", records().toString());
+
+			// The second destination gets its own copy of the encoded messages
+			buf.clear();
+			other.receive(buf);
+			buf.flip();
+			assertEquals(NetPacket.MESSAGE, NetCodec.readPacket(buf).type);
+			assertEquals("[b, a]", records().toString());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void largeMessagesAreCompressedForPeersSupportingIt() throws IOException {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetWrite.COMPRESSION_THRESHOLD * 4) {
+			text.append("cookie");
+		}
+		netWrite.send(dest, new ChatMessage(text.toString()), true);
+		netWrite.flush();
+		receive();
+		assertEquals(1, records().size());
+		assertEquals(1.0f, netWrite.getCompressionRatio(), 0.0f);
+
+		netWrite.setRemoteCompression(dest, true);
+		netWrite.send(dest, new ChatMessage(text.toString()), true);
+		netWrite.send(dest, new ChatMessage("a"), true); // Too small to compress
+		netWrite.flush();
+		receive();
+		assertEquals("[" + text + ", a]", records().toString());
+		assertTrue(netWrite.getCompressionRatio() < 1.0f);
+	}
+
+	@Test
+	public void unackedPacketsAreResentWithBackoff() throws Exception {
+		netWrite.send(dest, new ChatMessage("a"), true);
+		netWrite.flush();
+		NetPacket first = receive();
+
+		Thread.sleep(Connection.INITIAL_RTO + 100);
+		netWrite.update();
+		NetPacket resent = receive();
+		assertEquals(first.id, resent.id);
+		assertEquals("[a]", records().toString());
+
+		// Only the latest transmission of a packet is acked
+		netWrite.ackPackets(netWrite.getConnection(dest), first.sequence, 0);
+
+		// The timeout is doubled for the next resend
+		Thread.sleep(Connection.INITIAL_RTO + 100);
+		netWrite.update();
+		assertNull(receive());
+		Thread.sleep(Connection.INITIAL_RTO);
+		netWrite.update();
+		resent = receive();
+		assertEquals(first.id, resent.id);
+
+		netWrite.ackPackets(netWrite.getConnection(dest), resent.sequence, 0);
+		Thread.sleep(Connection.INITIAL_RTO * 4 + 100);
+		netWrite.update();
+		assertNull(receive());
+	}
+
+	@Test
+	public void resendTimeoutFollowsTheRoundTrip() throws Exception {
+		Connection conn = netWrite.getConnection(dest);
+		netWrite.send(dest, new ChatMessage("a"), true);
+		netWrite.flush();
+		netWrite.ackPackets(conn, receive().sequence, 0);
+		assertEquals(Connection.MIN_RTO, conn.rto);
+
+		netWrite.send(dest, new ChatMessage("b"), true);
+		netWrite.flush();
+		receive();
+		Thread.sleep(Connection.MIN_RTO + 50);
+		netWrite.update();
+		receive();
+		assertEquals("[b]", records().toString());
+	}
+
+	@Test
+	public void ackedPacketsAreFoundBySequence() throws IOException {
+		Connection conn = netWrite.getConnection(dest);
+		netWrite.send(dest, new ChatMessage("a"), true);
+		netWrite.flush();
+		NetPacket a = receive();
+		netWrite.send(dest, new ChatMessage("b"), true);
+		netWrite.flush();
+		NetPacket b = receive();
+		assertEquals(2, netWrite.getUnackedCount());
+
+		// b is acked by the header and a by the ack bits
+		netWrite.ackPackets(conn, b.sequence, 1 << (b.sequence - a.sequence - 1));
+		assertEquals(0, netWrite.getUnackedCount());
+		assertNull(conn.sentPackets[a.sequence & Connection.SENT_WINDOW_MASK]);
+	}
+
+	@Test
+	public void reliablePacketsAreHeldBackUntilTheOldestIsAcked() throws IOException {
+		Connection conn = netWrite.getConnection(dest);
+		conn.nextReliableId = Connection.RELIABLE_WINDOW - 1; // As if packet 0 is still unacked
+		netWrite.send(dest, new ChatMessage("a"), true);
+		netWrite.flush();
+		assertNull(receive());
+
+		conn.reliableAcked(0);
+		netWrite.flush();
+		NetPacket packet = receive();
+		assertEquals(Connection.RELIABLE_WINDOW - 1, packet.id);
+		assertEquals("[a]", records().toString());
+	}
+
+	@Test
+	public void limitedBandwidthSendsReliableAndNewestFirst() throws Exception {
+		netWrite.setBandwidth(dest, 20000); // A burst of one packet
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetWrite.MAX_BUNDLE_SIZE / 2) {
+			text.append('x');
+		}
+		// Only one of these fits in a packet
+		netWrite.send(dest, new ChatMessage("a" + text), false);
+		netWrite.send(dest, new ChatMessage("b" + text), false);
+		netWrite.send(dest, new ChatMessage("c" + text), false);
+		netWrite.send(dest, new ChatMessage("r"), true);
+		netWrite.flush();
+
+		// The newest state fills the first packet, and the budget runs out after the next one
+		NetPacket packet = receive();
+		assertEquals(NetPacket.MESSAGE, packet.type);
+		assertTrue(records().get(0).startsWith("c"));
+		assertEquals(NetPacket.RELIABLE_MESSAGE, receive().type);
+		assertEquals("[r]", records().toString());
+		assertEquals(NetPacket.MESSAGE, receive().type);
+		assertTrue(records().get(0).startsWith("b"));
+		assertNull(receive());
+
+		// The oldest state is outdated by the time there is bandwidth for it
+		Thread.sleep(NetWrite.UNRELIABLE_DEADLINE + 50);
+		netWrite.flush();
+		assertNull(receive());
+	}
+
+	@Test
+	public void acksAreCarriedByTheNextPacket() throws IOException {
+		Connection conn = netWrite.getConnection(dest);
+		netWrite.packetReceived(conn, 5, true);
+		netWrite.packetReceived(conn, 7, true);
+		netWrite.send(dest, new ChatMessage("a"), false);
+		netWrite.flush();
+		NetPacket packet = receive();
+		assertEquals(NetPacket.MESSAGE, packet.type);
+		assertEquals(7, packet.ack);
+		assertEquals(0x2, packet.ackBits);
+
+		// Nothing more to send, the ack is only repeated standalone when needed
+		netWrite.flush();
+		assertNull(receive());
+	}
+
+	@Test
+	public void standaloneAckIsSentAfterTheDelay() throws Exception {
+		netWrite.packetReceived(netWrite.getConnection(dest), 5, true);
+		netWrite.flush();
+		assertNull(receive());
+
+		Thread.sleep(NetWrite.ACK_DELAY + 10);
+		netWrite.flush();
+		NetPacket packet = receive();
+		assertEquals(NetPacket.ACK, packet.type);
+		assertEquals(5, packet.ack);
+	}
+
+	@Test
+	public void standaloneAckIsSentRightAwayAfterManyPackets() throws Exception {
+		Connection conn = netWrite.getConnection(dest);
+		netWrite.packetReceived(conn, 0, false);
+		netWrite.send(dest, new ChatMessage("a"), false);
+		netWrite.flush();
+		assertEquals(0, receive().ack);
+
+		// Unreliable packets don't need an ack, until earlier ones would no longer fit in the ack bits
+		for(int i = 1; i < NetWrite.ACK_GAP; ++i) {
+			netWrite.packetReceived(conn, i, false);
+		}
+		netWrite.flush();
+		assertNull(receive());
+		netWrite.packetReceived(conn, NetWrite.ACK_GAP, false);
+		NetPacket packet = receive();
+		assertEquals(NetPacket.ACK, packet.type);
+		assertEquals(NetWrite.ACK_GAP, packet.ack);
+		assertEquals(0xFFFFFFFF, packet.ackBits);
+	}
+
+	@Test
+	public void statsCountTheTrafficOfRemovedConnectionsToo() throws IOException {
+		Connection conn = netWrite.getConnection(dest);
+		netWrite.send(dest, new ChatMessage("a"), true);
+		netWrite.flush();
+		NetPacket packet = receive();
+		NetStats stats = netWrite.getStats(dest);
+		assertEquals(1, stats.packetsSent.get());
+		assertEquals(buf.limit(), stats.bytesSent.get());
+		assertEquals(1, stats.messagesSent.get(Message.Type.CHAT_MSG.ordinal()));
+		assertEquals(1, stats.unacked.get());
+
+		netWrite.ackPackets(conn, packet.sequence, 0);
+		assertEquals(0, stats.unacked.get());
+		assertEquals(1, stats.acks.get());
+
+		netWrite.removeConnection(dest);
+		assertNull(netWrite.getStats(dest));
+		assertEquals(1, netWrite.getTotalStats().packetsSent.get());
+	}
+
+	@Test
+	public void writerThreadExecutesTheCommandsInOrder() throws Exception {
+		netWrite.start();
+		try {
+			netWrite.send(dest, new ChatMessage("a"), true);
+			netWrite.send(dest, new ChatMessage("b"), true);
+			netWrite.flush();
+			assertEquals(NetPacket.RELIABLE_MESSAGE, receive().type);
+			assertEquals("[a, b]", records().toString());
+			assertTrue(netWrite.getWriterThreadId() != Thread.currentThread().getId());
+
+			// Resends are up to the writer thread
+			Thread.sleep(Connection.INITIAL_RTO + 100);
+			assertEquals(NetPacket.RELIABLE_MESSAGE, receive().type);
+			assertEquals("[a, b]", records().toString());
+		} finally {
+			netWrite.stop();
+		}
+		assertEquals(0, netWrite.getCommandQueueDepth());
+	}
+
+	@Test
+	public void writerThreadAppliesTheSettingsInOrder() throws Exception {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < NetWrite.MAX_BUNDLE_SIZE / 2) {
+			text.append("cookie");
+		}
+		netWrite.start();
+		try {
+			netWrite.setRemoteCompression(dest, true);
+			netWrite.send(dest, new ChatMessage(text.toString()), false);
+			netWrite.flush();
+			assertEquals(NetPacket.MESSAGE, receive().type);
+			assertEquals("[" + text + "]", records().toString());
+			// The statistics are read without waiting for the writer thread
+			assertTrue(netWrite.getCompressionRatio() < 1.0f);
+
+			netWrite.setRemoteCompression(dest, false);
+			netWrite.setBandwidth(dest, 20000); // A burst of one packet
+			netWrite.send(dest, new ChatMessage("a" + text), false);
+			netWrite.send(dest, new ChatMessage("b" + text), false);
+			netWrite.send(dest, new ChatMessage("c" + text), false);
+			netWrite.flush();
+			assertEquals(NetPacket.MESSAGE, receive().type);
+			assertTrue(netWrite.getQueuedCount(dest) > 0);
+		} finally {
+			netWrite.stop();
+		}
+	}
+
+	@Test
+	public void writerThreadSurvivesACommandThatFails() throws Exception {
+		netWrite.start();
+		try {
+			netWrite.send((InetSocketAddress)null, new ChatMessage("x"), true); // Fails on the writer thread
+			netWrite.send(dest, new ChatMessage("a"), true);
+			netWrite.flush();
+			assertEquals(NetPacket.RELIABLE_MESSAGE, receive().type);
+			assertEquals("[a]", records().toString());
+		} finally {
+			netWrite.stop();
+		}
+	}
+
+	@Test
+	public void removedConnectionSendsWhatIsQueuedButNeverResends() throws Exception {
+		netWrite.send(dest, new ChatMessage("bye"), true);
+		netWrite.removeConnection(dest);
+		receive();
+		assertEquals("[bye]", records().toString());
+
+		Thread.sleep(600);
+		netWrite.update();
+		assertNull(receive());
+	}
+}
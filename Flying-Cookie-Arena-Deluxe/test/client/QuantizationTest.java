@@ -0,0 +1,96 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Precision and bounds of the quantized transforms.
+public class QuantizationTest {
+	private static final float POSITION_PRECISION = World.WORLD_HALF_SIZE * 2.0f / ((1 << 16) - 1);
+
+	@After
+	public void restoreDefaults() {
+		Quantization.configure(16, 12, 64.0f);
+	}
+
+	private static void assertPosition(Vector3f expected, Vector3f actual) {
+		assertEquals(expected.x, actual.x, POSITION_PRECISION);
+		assertEquals(expected.y, actual.y, POSITION_PRECISION);
+		assertEquals(expected.z, actual.z, POSITION_PRECISION);
+	}
+
+	@Test
+	public void positionsWithinTheWorldRoundTrip() {
+		float h = World.WORLD_HALF_SIZE;
+		Vector3f[] positions = {
+			new Vector3f(0.0f, 0.0f, 0.0f),
+			new Vector3f(-h, World.WORLD_MIN_HEIGHT, -h),
+			new Vector3f(h, World.WORLD_MAX_HEIGHT, h),
+			new Vector3f(123.456f, 7.5f, -321.0f),
+		};
+		for(Vector3f p : positions) {
+			assertPosition(p, Quantization.dequantizePosition(Quantization.quantizePosition(p)));
+		}
+	}
+
+	@Test
+	public void positionsOutsideTheWorldAreClamped() {
+		float h = World.WORLD_HALF_SIZE;
+		Vector3f p = Quantization.dequantizePosition(Quantization.quantizePosition(new Vector3f(h * 2.0f, -1000.0f, Float.NaN)));
+		assertPosition(new Vector3f(h, World.WORLD_MIN_HEIGHT, -h), p);
+	}
+
+	@Test
+	public void velocitiesAreClamped() {
+		Vector3f v = Quantization.dequantizeVelocity(Quantization.quantizeVelocity(new Vector3f(100.0f, -100.0f, 3.0f)));
+		assertEquals(64.0f, v.x, 0.001f);
+		assertEquals(-64.0f, v.y, 0.001f);
+		assertEquals(3.0f, v.z, 128.0f / ((1 << 12) - 1));
+	}
+
+	@Test
+	public void rotationsRoundTrip() {
+		Quaternion[] rotations = {
+			new Quaternion(0.0f, 0.0f, 0.0f, 1.0f),
+			new Quaternion(0.0f, 0.70710678f, 0.0f, 0.70710678f),
+			new Quaternion(0.5f, -0.5f, 0.5f, -0.5f),
+			new Quaternion(0.1f, 0.2f, 0.3f, 0.9273618f),
+		};
+		for(Quaternion q : rotations) {
+			Quaternion r = Quantization.dequantizeRotation(Quantization.quantizeRotation(q));
+			// q and -q are the same rotation
+			float dot = q.getX() * r.getX() + q.getY() * r.getY() + q.getZ() * r.getZ() + q.getW() * r.getW();
+			assertEquals(1.0f, Math.abs(dot), 0.001f);
+		}
+	}
+
+	@Test
+	public void packedValuesRoundTrip() {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		long value = Quantization.quantizePosition(new Vector3f(1.0f, 2.0f, 3.0f));
+		Quantization.writePacked(value, Quantization.positionBytes(), buf);
+		assertEquals(6, buf.position());
+		buf.flip();
+		assertEquals(value, Quantization.readPacked(Quantization.positionBytes(), buf));
+	}
+
+	@Test
+	public void precisionCanBeChanged() {
+		Quantization.configure(8, 8, 10.0f);
+		assertEquals(3, Quantization.positionBytes());
+		Vector3f p = Quantization.dequantizePosition(Quantization.quantizePosition(new Vector3f(100.0f, 0.0f, 0.0f)));
+		assertTrue(Math.abs(p.x - 100.0f) <= World.WORLD_HALF_SIZE * 2.0f / 255.0f);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooManyBitsAreRejected() {
+		Quantization.configure(22, 12, 64.0f);
+	}
+}
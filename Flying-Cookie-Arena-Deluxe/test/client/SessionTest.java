@@ -0,0 +1,100 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/// Sessions running side by side in one process over a LoopbackTransport network.
+public class SessionTest {
+	private LoopbackTransport.Network network = new LoopbackTransport.Network();
+	private Session master = new Session();
+	private Session client = new Session();
+	private ArrayList<String> received = new ArrayList<String>(); // Chat messages received by the master.
+
+	@Before
+	public void setUp() throws Exception {
+		master.setTransportFactory(network);
+		client.setTransportFactory(network);
+		master.registerEffect(Message.Type.CHAT_MSG, new MessageEffect() {
+			@Override
+			public void execute(Message m) {
+				received.add(((ChatMessage)m).message);
+			}
+		});
+		master.createSession(0, null);
+	}
+
+	@After
+	public void tearDown() {
+		client.disconnect();
+		master.disconnect();
+	}
+
+	/// Updates both sessions until the condition holds or a second have passed.
+	private void updateUntil(Condition condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + 1000;
+		while(!condition.holds() && System.currentTimeMillis() < end) {
+			master.update();
+			client.update();
+			Thread.sleep(5);
+		}
+	}
+
+	private interface Condition {
+		boolean holds();
+	}
+
+	@Test
+	public void clientJoinsAndMessagesArriveInOrder() throws Exception {
+		client.connectToSession(master.getLocalAddress().getAddress(), master.getLocalAddress().getPort());
+		updateUntil(new Condition() {
+			@Override
+			public boolean holds() {
+				return client.getState() == Session.State.CONNECTED && master.getPeerCount() == 1;
+			}
+		});
+		assertEquals(Session.State.CONNECTED, client.getState());
+		assertEquals(1, master.getPeerCount());
+		assertTrue(client.getMyPeerId() > 0);
+
+		for(int i = 0; i < 10; ++i) {
+			client.sendToAll(new ChatMessage("m" + i), true);
+		}
+		updateUntil(new Condition() {
+			@Override
+			public boolean holds() {
+				return received.size() == 10;
+			}
+		});
+		assertEquals("[m0, m1, m2, m3, m4, m5, m6, m7, m8, m9]", received.toString());
+	}
+
+	@Test
+	public void unorderedMessagesAllArrive() throws Exception {
+		client.connectToSession(master.getLocalAddress().getAddress(), master.getLocalAddress().getPort());
+		updateUntil(new Condition() {
+			@Override
+			public boolean holds() {
+				return client.getState() == Session.State.CONNECTED;
+			}
+		});
+
+		for(int i = 0; i < 10; ++i) {
+			client.sendToAll(new ChatMessage("m" + i), MessageChannel.RELIABLE_UNORDERED);
+		}
+		updateUntil(new Condition() {
+			@Override
+			public boolean holds() {
+				return received.size() == 10;
+			}
+		});
+		Collections.sort(received);
+		assertEquals("[m0, m1, m2, m3, m4, m5, m6, m7, m8, m9]", received.toString());
+	}
+}
@@ -0,0 +1,104 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+
+import org.junit.Test;
+
+import com.jme3.collision.CollisionResults;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import com.jme3.scene.Spatial;
+
+/// Selection of the entity states that World.broadcastWorldState sends to each peer.
+public class WorldTest {
+	/// Entity that only has a position, enough to decide what to send.
+	static class TestEntity extends Entity {
+		private Vector3f position;
+		private boolean alwaysRelevant = false;
+		private int customState = 0;
+		private int sentState = 0; // Custom state in the latest state message built.
+
+		TestEntity(int entityId, Type type, Vector3f position) {
+			super(0, null, entityId, type);
+			this.position = position;
+		}
+
+		@Override
+		public void update(float tpf) {}
+		@Override
+		public void destroy() {}
+		@Override
+		public Vector3f getPosition() { return position; }
+		@Override
+		protected void setPosition(Vector3f position) { this.position = position; }
+		@Override
+		public Quaternion getRotation() { return new Quaternion(); }
+		@Override
+		protected void setRotation(Quaternion rotation) {}
+		@Override
+		public Vector3f getVelocity() { return new Vector3f(); }
+		@Override
+		protected void setVelocity(Vector3f velocity) {}
+		@Override
+		public void setCollisionGroup(int group) {}
+		@Override
+		public Spatial getSpatial() { return null; }
+		@Override
+		public void collideWith(Ray ray, CollisionResults results) {}
+		@Override
+		public boolean isAlwaysRelevant() { return alwaysRelevant; }
+		@Override
+		protected Serializable getCustomData() { return customState; }
+		@Override
+		protected boolean hasCustomStateChanged() { return customState != sentState; }
+		@Override
+		protected void customStateSent() { sentState = customState; }
+	}
+
+	@Test
+	public void onlyEntitiesNearThePeerAreRelevant() {
+		Vector3f center = new Vector3f(100.0f, 0.0f, 100.0f);
+		TestEntity near = new TestEntity(1, Entity.Type.CRATE, new Vector3f(100.0f, 0.0f, 100.0f + World.RELEVANCE_RADIUS - 1.0f));
+		TestEntity far = new TestEntity(2, Entity.Type.CRATE, new Vector3f(100.0f, 0.0f, 100.0f + World.RELEVANCE_RADIUS + 1.0f));
+		assertTrue(World.isRelevant(near, center));
+		assertFalse(World.isRelevant(far, center));
+
+		// Peers without a character receives everything
+		assertTrue(World.isRelevant(far, null));
+
+		far.alwaysRelevant = true;
+		assertTrue(World.isRelevant(far, center));
+	}
+
+	@Test
+	public void priorityGrowsFasterForCloseMovingAndImportantEntities() {
+		// An unchanged character next to the peer is sent about once a second
+		assertEquals(World.SEND_THRESHOLD, World.priorityGain(Entity.Type.CHARACTER, 0.0f, 0.0f, 1.0f), 0.001f);
+
+		float still = World.priorityGain(Entity.Type.CRATE, 10.0f, 0.0f, 0.1f);
+		assertTrue(World.priorityGain(Entity.Type.CRATE, 100.0f, 0.0f, 0.1f) < still);
+		assertTrue(World.priorityGain(Entity.Type.CRATE, 10.0f, 1.0f, 0.1f) > still);
+		assertTrue(World.priorityGain(Entity.Type.CHARACTER, 10.0f, 0.0f, 0.1f) > still);
+		assertTrue(World.priorityGain(Entity.Type.CAMP_FIRE, 10.0f, 0.0f, 0.1f) < still);
+		assertEquals(0.0f, World.priorityGain(Entity.Type.CRATE, 10.0f, 0.0f, 0.0f), 0.0f);
+	}
+
+	@Test
+	public void customStateChangeIsClearedOnceTheStateIsBuilt() {
+		TestEntity entity = new TestEntity(1, Entity.Type.FLAG, new Vector3f());
+		entity.buildStateMessage(true);
+		assertFalse(entity.hasCustomStateChanged());
+
+		entity.customState = 1;
+		assertTrue(entity.hasCustomStateChanged());
+		EntityStateMessage msg = entity.buildStateMessage();
+		assertEquals(1, msg.customData);
+		// Every peer gets this message, the change must not be sent again
+		assertFalse(entity.hasCustomStateChanged());
+	}
+}
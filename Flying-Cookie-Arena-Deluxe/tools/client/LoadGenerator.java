@@ -0,0 +1,445 @@
+package client;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector3f;
+
+/// Headless load test of Session and the entity replication.
+/// For every step a master and N - 1 bot peers are started in this process, connected through a
+///	LoopbackTransport.Network so that no sockets or real network is involved. Each peer runs a real
+///	Session and a replication loop similar to World: the master owns flags and camp fires which it
+///	sends to joining peers, every peer moves a character in a circle and broadcasts its state at
+///	Application.NET_RATE, bots try to pick up flags and the master toggles its camp fires.
+///
+/// Reported for every step:
+///	- Join time, from connecting until the session is connected and the world is received.
+///	- Outgoing and incoming bandwidth of the master and the average bot.
+///	- Latency of entity states and events, from being built to being executed by the receiver.
+///	- Frame time and CPU usage of the master thread, and the CPU usage of the writer thread of its session which
+///	  encodes and sends the messages. Both are needed to compare with a session that sends on the game thread.
+///	  The writer CPU is measured as the CPU time of the thread, parked time isn't counted.
+///
+/// Usage: LoadGenerator [maxPeers] [secondsPerStep] [latencyMs] [lossPercent]
+///	Runs N = 2, 4, 8 ... up to maxPeers (Default 64). A latency or loss above 0 puts a LinkEmulator
+///	with those conditions on the outgoing side of every peer.
+public class LoadGenerator {
+	private static final int FRAME_RATE = 60; // Frames per second of every peer.
+	private static final int FLAG_COUNT = 4;
+	private static final int CAMP_FIRE_COUNT = 8;
+	private static final long JOIN_TIMEOUT = 20000; // Time in ms to wait for all peers to join.
+	private static final long SEED = 1234;
+
+	/// Ids of entities created by the peer with the specified id, like World does for its peers.
+	private static int entityId(int peerId, int index) {
+		return peerId * 1000 + index;
+	}
+
+	/// A peer running a session and a scripted replication loop on a thread of its own.
+	private static class Bot implements Runnable {
+		final boolean master;
+		final InetSocketAddress masterAddr; // Null for the master.
+		final Transport.Factory transportFactory;
+		final LinkEmulator.Conditions conditions;
+		final long seed;
+
+		Session session = new Session();
+		volatile LoopbackTransport transport; // Set by the session thread when the session opens its transport, read by the generator.
+		Thread thread;
+		volatile boolean running = true;
+		volatile boolean measuring = false;
+
+		// Join
+		long connectTime;
+		volatile long joinTime = -1; // Time in ms it took to join, -1 until joined.
+		int receivedEntities = 0;
+
+		// Scripted world
+		Random random;
+		HashMap<Integer, Integer> flagOwners = new HashMap<Integer, Integer>(); // Flag entity id to owner peer id (Master only).
+		boolean[] fireBurning = new boolean[CAMP_FIRE_COUNT];
+		int[] sequences = new int[1 + FLAG_COUNT + CAMP_FIRE_COUNT]; // Next state sequence of the character, flags and camp fires.
+		int carriedFlag = -1; // Entity id of the flag carried by this peer, -1 if none.
+
+		// Statistics, only touched by the bot thread until it has stopped.
+		long[] latencies = new long[1024]; // In microseconds.
+		int latencyCount = 0;
+		long[] frameTimes = new long[1024]; // In microseconds.
+		int frameCount = 0;
+		long cpuTime = 0; // CPU time of the thread while measuring, in ns.
+		long writerCpuTime = 0; // CPU time of the writer thread of the session while measuring, in ns.
+		long bytesSentStart, bytesReceivedStart;
+		volatile long bytesSent, bytesReceived; // Bytes sent and received while measuring.
+
+		Bot(boolean master, InetSocketAddress masterAddr, final Transport.Factory network,
+				LinkEmulator.Conditions conditions, long seed) {
+			this.master = master;
+			this.masterAddr = masterAddr;
+			this.conditions = conditions;
+			this.seed = seed;
+			this.random = new Random(seed);
+			// Keep the transport of the session around for its statistics
+			this.transportFactory = new Transport.Factory() {
+				@Override
+				public Transport open(int port) throws IOException {
+					Transport t = network.open(port);
+					transport = (LoopbackTransport)t;
+					return t;
+				}
+			};
+		}
+
+		void start() {
+			thread = new Thread(this, master ? "Master" : "Bot");
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				setup();
+			} catch (Exception e) {
+				e.printStackTrace();
+				return;
+			}
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			long frameInterval = 1000000000L / FRAME_RATE;
+			long netInterval = 1000000000L / Application.NET_RATE;
+			long nextFrame = System.nanoTime();
+			long nextNet = nextFrame;
+			boolean wasMeasuring = false;
+			long cpuStart = 0;
+			long writerCpuStart = 0;
+
+			while(running) {
+				long frameStart = System.nanoTime();
+				if(measuring != wasMeasuring) {
+					wasMeasuring = measuring;
+					if(wasMeasuring) {
+						cpuStart = threads.getCurrentThreadCpuTime();
+						writerCpuStart = writerCpuTime(threads);
+						bytesSentStart = transport.getBytesSent();
+						bytesReceivedStart = transport.getBytesReceived();
+						latencyCount = 0;
+						frameCount = 0;
+					} else {
+						stopMeasuring(threads, cpuStart, writerCpuStart);
+					}
+				}
+
+				session.update();
+				if(session.getState() == Session.State.CONNECTED && frameStart >= nextNet) {
+					nextNet += netInterval;
+					try {
+						replicate();
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+				session.flush();
+
+				if(wasMeasuring) {
+					frameTimes = add(frameTimes, frameCount++, (System.nanoTime() - frameStart) / 1000);
+				}
+
+				nextFrame += frameInterval;
+				long sleep = (nextFrame - System.nanoTime()) / 1000000;
+				if(sleep > 0) {
+					try {
+						Thread.sleep(sleep);
+					} catch (InterruptedException e) {
+						break;
+					}
+				} else {
+					nextFrame = System.nanoTime(); // Fell behind, don't try to catch up.
+				}
+			}
+			if(wasMeasuring) {
+				stopMeasuring(threads, cpuStart, writerCpuStart); // Stopped in the middle of a long frame
+			}
+			session.disconnect();
+		}
+
+		private void stopMeasuring(ThreadMXBean threads, long cpuStart, long writerCpuStart) {
+			cpuTime = threads.getCurrentThreadCpuTime() - cpuStart;
+			writerCpuTime = writerCpuTime(threads) - writerCpuStart;
+			bytesSent = transport.getBytesSent() - bytesSentStart;
+			bytesReceived = transport.getBytesReceived() - bytesReceivedStart;
+		}
+
+		/// @return CPU time in ns of the writer thread of the session, 0 if it isn't running.
+		private long writerCpuTime(ThreadMXBean threads) {
+			long id = session.getWriterThreadId();
+			return (id >= 0) ? Math.max(threads.getThreadCpuTime(id), 0) : 0;
+		}
+
+		/// Creates or connects to the session and registers the message effects.
+		private void setup() throws Exception {
+			session.setTransportFactory(transportFactory);
+			if(conditions != null) {
+				session.setLinkEmulation(conditions, null, seed);
+			}
+
+			MessageEffect latencyEffect = new MessageEffect() {
+				@Override
+				public void execute(Message m) {
+					EntityStateMessage state = (m.type == Message.Type.ENTITY_EVENT) ? ((EntityEventMessage)m).state : (EntityStateMessage)m;
+					if(measuring) {
+						latencies = add(latencies, latencyCount++, System.nanoTime() / 1000 - state.timestamp * 100);
+					}
+				}
+			};
+			session.registerEffect(Message.Type.ENTITY_STATE, latencyEffect);
+			session.registerEffect(Message.Type.ENTITY_EVENT, latencyEffect);
+
+			if(master) {
+				session.createSession(Application.GAME_PORT, null);
+				for(int i = 0; i < FLAG_COUNT; ++i) {
+					flagOwners.put(entityId(0, 1 + i), 0);
+				}
+				joinTime = 0;
+
+				// Send the world to new peers, like World.broadcastWorldCreation
+				session.registerEffect(Message.Type.HELLO, new MessageEffect() {
+					@Override
+					public void execute(Message m) {
+						for(int i = 0; i < FLAG_COUNT + CAMP_FIRE_COUNT; ++i) {
+							boolean flag = i < FLAG_COUNT;
+							CreateEntityMessage msg = new CreateEntityMessage(entityId(0, 1 + i),
+									flag ? Entity.Type.FLAG : Entity.Type.CAMP_FIRE, entityPosition(i), new Quaternion());
+							msg.customData = flag ? flagData(entityId(0, 1 + i)) : fireData(i - FLAG_COUNT);
+							try {
+								session.sendToPeer(msg, m.peer, true);
+							} catch (Exception e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+				// Grant flag requests if the flag isn't carried by someone else, like Application does
+				session.registerEffect(Message.Type.ENTITY_REQ_OWN_CHANGE, new MessageEffect() {
+					@Override
+					public void execute(Message m) {
+						EntityRequestOwnerMessage msg = (EntityRequestOwnerMessage)m;
+						Integer owner = flagOwners.get(msg.entityId);
+						if(owner != null && owner == 0) {
+							flagOwners.put(msg.entityId, m.peer);
+							try {
+								session.sendToAll(new EntityNewOwnerMessage(m.peer, msg.entityId), true);
+							} catch (Exception e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+			} else {
+				session.registerEffect(Message.Type.CREATE_ENTITY, new MessageEffect() {
+					@Override
+					public void execute(Message m) {
+						if(++receivedEntities == FLAG_COUNT + CAMP_FIRE_COUNT && joinTime < 0) {
+							joinTime = System.currentTimeMillis() - connectTime;
+						}
+					}
+				});
+				session.registerEffect(Message.Type.ENTITY_OWNER_CHANGE, new MessageEffect() {
+					@Override
+					public void execute(Message m) {
+						EntityNewOwnerMessage msg = (EntityNewOwnerMessage)m;
+						if(msg.ownerId == session.getMyPeerId()) {
+							carriedFlag = msg.entityId;
+						}
+					}
+				});
+				connectTime = System.currentTimeMillis();
+				session.connectToSession(masterAddr.getAddress(), masterAddr.getPort());
+			}
+		}
+
+		/// Sends the states owned by this peer and runs the scripted events, called at NET_RATE.
+		private void replicate() throws Exception {
+			int me = session.getMyPeerId();
+			float time = (System.nanoTime() % 1000000000000L) / 1e9f;
+
+			// Character running in a circle
+			float angle = time * 0.5f + me;
+			Vector3f position = new Vector3f((float)Math.cos(angle) * 100.0f, 10.0f, (float)Math.sin(angle) * 100.0f);
+			Vector3f velocity = new Vector3f(-(float)Math.sin(angle) * 50.0f, 0.0f, (float)Math.cos(angle) * 50.0f);
+			session.sendToAll(buildState(0, entityId(me, 0), position, velocity, null), false);
+
+			if(carriedFlag >= 0) {
+				// The flag follows its carrier
+				session.sendToAll(buildState(1, carriedFlag, position, velocity, flagData(carriedFlag)), false);
+				if(random.nextInt(Application.NET_RATE * 5) == 0) {
+					carriedFlag = -1; // Dropped, only the master grants new pickups in this script
+				}
+			} else if(!master && random.nextInt(Application.NET_RATE * 3) == 0) {
+				session.sendToPeer(new EntityRequestOwnerMessage(entityId(0, 1 + random.nextInt(FLAG_COUNT))), 0, true);
+			}
+
+			if(master) {
+				for(int i = 0; i < CAMP_FIRE_COUNT; ++i) {
+					if(random.nextInt(Application.NET_RATE * 2) == 0) {
+						fireBurning[i] = !fireBurning[i];
+						EntityStateMessage state = buildState(1 + FLAG_COUNT + i, entityId(0, 1 + FLAG_COUNT + i),
+								entityPosition(FLAG_COUNT + i), null, fireData(i));
+						session.sendToAll(new EntityEventMessage(state), true);
+					}
+				}
+				// Flags are released again after a while so that other bots can pick them up
+				for(Integer flag : flagOwners.keySet()) {
+					if(flagOwners.get(flag) != 0 && random.nextInt(Application.NET_RATE * 4) == 0) {
+						flagOwners.put(flag, 0);
+						session.sendToAll(new EntityNewOwnerMessage(0, flag), true);
+					}
+				}
+			}
+		}
+
+		/// Builds a state with the timestamp in units of 0.1 ms, used by the receivers to measure the latency.
+		/// The game uses ms, this is as fine as it gets while a delta can still carry the time since its baseline in 16 bits.
+		private EntityStateMessage buildState(int slot, int entityId, Vector3f position, Vector3f velocity, Serializable customData) {
+			EntityStateMessage state = new EntityStateMessage(entityId, position, new Quaternion(), velocity, customData);
+			state.sequence = sequences[slot]++;
+			state.timestamp = System.nanoTime() / 100000;
+			return state;
+		}
+
+		private Serializable fireData(int index) {
+			HashMap<String, Object> data = new HashMap<String, Object>();
+			data.put("burning", fireBurning[index]);
+			data.put("fuel", 100);
+			return data;
+		}
+	}
+
+	private static Vector3f entityPosition(int index) {
+		return new Vector3f(-300.0f + index * 50.0f, 0.0f, 300.0f);
+	}
+
+	private static Serializable flagData(int entityId) {
+		HashMap<String, Object> data = new HashMap<String, Object>();
+		data.put("state", "CARRYD");
+		data.put("team", entityId % 2);
+		return data;
+	}
+
+	/// @return The array with value stored at index, grown if needed.
+	private static long[] add(long[] array, int index, long value) {
+		if(index >= array.length) {
+			array = Arrays.copyOf(array, array.length * 2);
+		}
+		array[index] = value;
+		return array;
+	}
+
+	/// @return The p:th percentile of the first count values, which are sorted by this call.
+	private static long percentile(long[] values, int count, double p) {
+		if(count == 0) {
+			return 0;
+		}
+		Arrays.sort(values, 0, count);
+		int index = (int)Math.ceil(p / 100.0 * count) - 1;
+		return values[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/// Runs a single step with the specified number of peers.
+	private static void runStep(int peers, long measureMillis, LinkEmulator.Conditions conditions) throws Exception {
+		LoopbackTransport.Network network = new LoopbackTransport.Network();
+		Bot master = new Bot(true, null, network, conditions, SEED);
+		master.start();
+		while(master.transport == null || master.session.getState() != Session.State.CONNECTED) {
+			Thread.sleep(1);
+		}
+		InetSocketAddress masterAddr = master.transport.getLocalAddress();
+
+		List<Bot> bots = new ArrayList<Bot>();
+		for(int i = 1; i < peers; ++i) {
+			Bot bot = new Bot(false, masterAddr, network, conditions, SEED + i);
+			bots.add(bot);
+			bot.start();
+		}
+
+		// Wait for everyone to join, then let the session settle before measuring
+		long deadline = System.currentTimeMillis() + JOIN_TIMEOUT;
+		int joined = 0;
+		while(System.currentTimeMillis() < deadline) {
+			joined = 0;
+			for(Bot bot : bots) {
+				if(bot.joinTime >= 0) joined++;
+			}
+			if(joined == bots.size()) break;
+			Thread.sleep(10);
+		}
+		Thread.sleep(1000);
+
+		List<Bot> all = new ArrayList<Bot>(bots);
+		all.add(master);
+		for(Bot bot : all) bot.measuring = true;
+		Thread.sleep(measureMillis);
+		for(Bot bot : all) bot.measuring = false;
+		Thread.sleep(100);
+		for(Bot bot : all) bot.running = false;
+		for(Bot bot : all) bot.thread.join();
+
+		// Aggregate
+		long joinSum = 0, joinMax = 0;
+		long botSent = 0, botReceived = 0;
+		int latencyCount = 0;
+		for(Bot bot : all) latencyCount += bot.latencyCount;
+		long[] latencies = new long[latencyCount];
+		latencyCount = 0;
+		for(Bot bot : all) {
+			System.arraycopy(bot.latencies, 0, latencies, latencyCount, bot.latencyCount);
+			latencyCount += bot.latencyCount;
+		}
+		for(Bot bot : bots) {
+			joinSum += Math.max(bot.joinTime, 0);
+			joinMax = Math.max(joinMax, bot.joinTime);
+			botSent += bot.bytesSent;
+			botReceived += bot.bytesReceived;
+		}
+		float seconds = measureMillis / 1000.0f;
+		int n = Math.max(bots.size(), 1);
+
+		System.out.printf("%4d %6d %6d %5d/%-5d %9.1f %9.1f %9.1f %9.1f %7.2f %7.2f %7.2f %7.2f %7.2f %6.1f %7.1f%n",
+				peers,
+				joinSum / n, joinMax, joined, bots.size(),
+				master.bytesSent / 1024.0f / seconds, master.bytesReceived / 1024.0f / seconds,
+				botSent / 1024.0f / seconds / n, botReceived / 1024.0f / seconds / n,
+				percentile(latencies, latencyCount, 50) / 1000.0f,
+				percentile(latencies, latencyCount, 95) / 1000.0f,
+				percentile(latencies, latencyCount, 99) / 1000.0f,
+				percentile(master.frameTimes, master.frameCount, 50) / 1000.0f,
+				percentile(master.frameTimes, master.frameCount, 99) / 1000.0f,
+				100.0f * master.cpuTime / (measureMillis * 1000000.0f),
+				100.0f * master.writerCpuTime / (measureMillis * 1000000.0f));
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxPeers = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+		long measureMillis = ((args.length > 1) ? Integer.parseInt(args[1]) : 5) * 1000L;
+		long latency = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+		float loss = (args.length > 3) ? Float.parseFloat(args[3]) / 100.0f : 0.0f;
+		LinkEmulator.Conditions conditions = null;
+		if(latency > 0 || loss > 0.0f) {
+			conditions = new LinkEmulator.Conditions(latency, latency / 10, loss);
+		}
+
+		System.out.println("                            master KB/s         bot KB/s       latency ms (p50/95/99)  master frame ms  master cpu%");
+		System.out.println("   N  join  joinMax  joined      out        in       out        in     p50     p95     p99     p50     p99   game  writer");
+		for(int peers = 2; peers <= maxPeers; peers *= 2) {
+			runStep(peers, measureMillis, conditions);
+		}
+		System.exit(0);
+	}
+}